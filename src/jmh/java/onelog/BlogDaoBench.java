@@ -0,0 +1,45 @@
+package onelog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlogDao对嵌入式H2的查询: 首页、深分页、分区列表和正文读取(含解压).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BlogDaoBench {
+
+    @Benchmark
+    public List<Models.Page> listFirstPage(SeededSite site) {
+        return site.blogDao.pageList(null, 1, site.settings.getPageSize()).getList();
+    }
+
+    @Benchmark
+    public List<Models.Page> listDeepPage(SeededSite site) {
+        var size = site.settings.getPageSize();
+        var last = site.pageIds.size() / size;
+        return site.blogDao.pageList(null, last, size).getList();
+    }
+
+    @Benchmark
+    public List<Models.Page> listSection(SeededSite site) {
+        return site.blogDao.pageList(site.sectionIds.get(1), 2, site.settings.getPageSize()).getList();
+    }
+
+    @Benchmark
+    public Models.Page pageGet(SeededSite site) {
+        return site.blogDao.pageGet(site.pageIds.get(site.pageIds.size() / 2));
+    }
+}
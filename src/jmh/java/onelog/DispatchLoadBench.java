@@ -0,0 +1,226 @@
+package onelog;
+
+import cn.hutool.core.io.FileUtil;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import com.google.inject.util.Modules;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.SneakyThrows;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求分发的负载模型: 固定大小的服务器线程池处理一批/resources请求, 走真实的BlogController和ResourceStore.
+ * 其中missRatio比例是没缓存过的资源, 经ResourceStore下载(Graph换成固定延迟的假传输层)并边下边发,
+ * 其余命中本地缓存. server直接在池线程上处理, virtual经Main.dispatch交给虚拟线程(需要JDK21+).
+ * 结果是每批请求的完成时间, 越短吞吐越高.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DispatchLoadBench {
+    private static final int SERVER_THREADS = 16;
+    private static final int REQUESTS = 400;
+    private static final int CACHED = 64;
+    private static final long GRAPH_LATENCY_MS = 20;
+    private static final byte[] BODY = new byte[16 * 1024];
+
+    @Param({"server", "virtual"})
+    public String mode;
+    @Param({"0.05", "0.2", "0.5"})
+    public double missRatio;
+
+    File dir;
+    Injector guice;
+    BlogController controller;
+    ExecutorService server;
+    ExecutorService handlers;
+    List<String> cached = new ArrayList<>();
+    AtomicLong misses = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        server = Executors.newFixedThreadPool(SERVER_THREADS);
+        if (mode.equals("virtual")) {
+            handlers = Main.virtualThreadExecutor();
+            if (handlers == null) {
+                throw new IllegalStateException("virtual模式需要JDK21+");
+            }
+        }
+
+        dir = Files.createTempDirectory("onelog-dispatch").toFile();
+        var settings = new Settings();
+        settings.setTitle("bench");
+        settings.setCacheDir(new File(dir, "cache").getPath());
+        var h2 = new Settings.H2();
+        h2.setUser("sa");
+        h2.setPass("");
+        h2.setBaseDir(new File(dir, "data").getPath());
+        settings.setH2(h2);
+        // 下载并发要跟得上miss, 否则量到的是下载池排队
+        settings.setDownloadConcurrency(SERVER_THREADS);
+
+        guice = Guice.createInjector(Modules.override(new Main(settings)).with(b -> b.bind(GraphTransport.class).to(SlowGraph.class)));
+        controller = guice.getInstance(BlogController.class);
+
+        var token = new MicroGraph.AccessToken();
+        token.setAccessToken("bench");
+        token.setRefreshToken("bench");
+        token.setExpireAt(System.currentTimeMillis() / 1000 + TimeUnit.DAYS.toSeconds(1));
+        guice.getInstance(MicroGraph.class).saveToken(token);
+
+        var store = guice.getInstance(ResourceStore.class);
+        for (int i = 0; i < CACHED; i++) {
+            var fileId = "cached-" + i;
+            store.get(fileId);
+            cached.add(fileId);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.shutdownNow();
+        if (handlers != null) handlers.shutdownNow();
+        try (var conn = guice.getInstance(DataSource.class).getConnection(); var st = conn.createStatement()) {
+            st.execute("SHUTDOWN");
+        }
+        FileUtil.del(dir);
+    }
+
+    @Benchmark
+    public void batch() throws InterruptedException {
+        var done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            var random = ThreadLocalRandom.current();
+            // miss每次都换新的id, 保证确实要下载
+            var fileId = random.nextDouble() < missRatio ? "miss-" + misses.incrementAndGet() : cached.get(random.nextInt(CACHED));
+            server.execute(() -> {
+                var c = exchange(fileId, handlers != null, done);
+                if (handlers == null) {
+                    try {
+                        controller.actionResources$(c);
+                    } finally {
+                        done.countDown();
+                    }
+                } else {
+                    // 异步完成时由AsyncContext.complete计数
+                    Main.dispatch(handlers, c, () -> controller.actionResources$(c));
+                }
+            });
+        }
+        done.await();
+    }
+
+    /**
+     * 每个请求新建的GET /resources/{fileId}, 响应正文直接丢弃.
+     */
+    private static HttpExchange exchange(String fileId, boolean async, CountDownLatch done) {
+        var loader = DispatchLoadBench.class.getClassLoader();
+        var context = (AsyncContext) Proxy.newProxyInstance(loader, new Class[]{AsyncContext.class}, (proxy, method, args) -> {
+            if (method.getName().equals("complete")) done.countDown();
+            return null;
+        });
+        var values = Map.<String, Object>of(
+          "getRequestURI", "/resources/" + fileId,
+          "getServletPath", "/resources",
+          "getPathInfo", "/" + fileId,
+          "getContextPath", "",
+          "getMethod", "GET",
+          "getCharacterEncoding", "UTF-8",
+          "isAsyncSupported", async,
+          "startAsync", context
+        );
+        var request = (HttpServletRequest) Proxy.newProxyInstance(loader, new Class[]{HttpServletRequest.class},
+          (proxy, method, args) -> values.containsKey(method.getName()) ? values.get(method.getName()) : defaultValue(method.getReturnType()));
+        var out = new DiscardOutputStream();
+        var response = (HttpServletResponse) Proxy.newProxyInstance(loader, new Class[]{HttpServletResponse.class},
+          (proxy, method, args) -> method.getName().equals("getOutputStream") ? out : defaultValue(method.getReturnType()));
+        return new HttpExchange(request, response);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    /**
+     * 代替Graph的传输层: 每次请求固定延迟后返回一个资源文件.
+     */
+    @Singleton
+    static class SlowGraph extends GraphTransport {
+        @Inject
+        SlowGraph(Settings settings, Metrics metrics) {
+            super(settings, metrics);
+        }
+
+        @Override
+        @SneakyThrows
+        public Response open(String url, String accessToken) {
+            Thread.sleep(GRAPH_LATENCY_MS);
+            return new Response(new ByteArrayInputStream(BODY), "image/png");
+        }
+    }
+
+    /**
+     * 带write(ByteBuffer)的输出流, 让FileSender走和容器一样的写法.
+     */
+    public static class DiscardOutputStream extends ServletOutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        public void write(ByteBuffer buffer) {
+            buffer.position(buffer.limit());
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+}
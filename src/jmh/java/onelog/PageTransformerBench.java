@@ -0,0 +1,59 @@
+package onelog;
+
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同步时的正文转换. dom是旧做法(整段字符串 -> 改写img -> html() -> text())作为对照.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PageTransformerBench {
+    @Param({"text-page.html", "image-page.html"})
+    public String fixture;
+
+    byte[] html;
+    PageTransformer transformer = new PageTransformer();
+
+    @Setup
+    public void setup() {
+        html = SeededSite.fixture(fixture);
+    }
+
+    @Benchmark
+    public PageTransformer.Result streaming() {
+        return transformer.transform(new ByteArrayInputStream(html));
+    }
+
+    @Benchmark
+    public void dom(Blackhole bh) {
+        var doc = Jsoup.parse(new String(html, StandardCharsets.UTF_8));
+        for (var img : doc.getElementsByTag("img")) {
+            var src = img.attr("src");
+            if (!src.startsWith("https://graph.microsoft.com/")) continue;
+            var parts = src.split("/");
+            img.attr("src", "/resources/" + parts[parts.length - 2]);
+        }
+        bh.consume(doc.body().html());
+        bh.consume(doc.body().text());
+    }
+}
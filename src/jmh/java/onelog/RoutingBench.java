@@ -0,0 +1,91 @@
+package onelog;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 控制器里的路径和参数解析: 每个请求都会走几次path(n)/paramLong.
+ * 解析结果缓存在exchange上, 所以每次调用都新建exchange, 量的是一个请求从头解析的开销.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RoutingBench {
+    @Param({"/page/0-9f3a1c2b7d6e4f80a1b2c3d4e5f60718!1-4C1A2B3D5E6F7081!123", "/section/0-5b6c7d8e9f0a1b2c?page=7"})
+    public String url;
+
+    HttpServletRequest request;
+    HttpServletResponse response;
+
+    @Setup
+    public void setup() {
+        var uri = url.contains("?") ? url.substring(0, url.indexOf('?')) : url;
+        var query = url.contains("?") ? url.substring(url.indexOf('?') + 1) : null;
+        // 分区列表挂在首页路由"/*"下, 其余路由以第一段为servlet path
+        var servletPath = uri.startsWith("/section/") ? "" : uri.substring(0, uri.indexOf('/', 1));
+        var values = Map.<String, Object>of(
+          "getRequestURI", uri,
+          "getServletPath", servletPath,
+          "getPathInfo", uri.substring(servletPath.length()),
+          "getContextPath", "",
+          "getMethod", "GET",
+          "getQueryString", query == null ? "" : query,
+          "getCharacterEncoding", "UTF-8"
+        );
+        request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class},
+          (proxy, method, args) -> {
+              if (method.getName().equals("getParameter") && query != null && query.startsWith(args[0] + "=")) {
+                  return query.substring(query.indexOf('=') + 1);
+              }
+              return values.containsKey(method.getName()) ? values.get(method.getName()) : defaultValue(method.getReturnType());
+          });
+        response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class},
+          (proxy, method, args) -> defaultValue(method.getReturnType()));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    @Benchmark
+    public String[] paths() {
+        return new HttpExchange(request, response).paths();
+    }
+
+    /**
+     * actionIndex$的实际调用: 一次paramLong加一次path(1).
+     */
+    @Benchmark
+    public void index(Blackhole bh) {
+        var exchange = new HttpExchange(request, response);
+        bh.consume(exchange.paramLong("page", 1L));
+        bh.consume(exchange.path(1));
+    }
+
+    @Benchmark
+    public String pathFirst() {
+        return new HttpExchange(request, response).path(0);
+    }
+}
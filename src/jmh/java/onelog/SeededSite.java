@@ -0,0 +1,106 @@
+package onelog;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.resource.ResourceUtil;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基准测试共用的站点: 临时目录里的嵌入式H2, 按fixtures生成分区和页面, 与线上同一套Guice配置.
+ */
+@State(Scope.Benchmark)
+public class SeededSite {
+    static final List<String> FIXTURES = List.of("text-page.html", "image-page.html");
+
+    @Param({"3"})
+    public int sections;
+    @Param({"200"})
+    public int pagesPerSection;
+
+    File dir;
+    Injector guice;
+    Settings settings;
+    BlogDao blogDao;
+    BlogController controller;
+    List<String> sectionIds = new ArrayList<>();
+    List<String> pageIds = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("onelog-bench").toFile();
+        settings = new Settings();
+        settings.setTitle("bench");
+        settings.setCacheDir(new File(dir, "cache").getPath());
+        var h2 = new Settings.H2();
+        h2.setUser("sa");
+        h2.setPass("");
+        h2.setBaseDir(new File(dir, "data").getPath());
+        settings.setH2(h2);
+
+        guice = Guice.createInjector(new Main(settings));
+        blogDao = guice.getInstance(BlogDao.class);
+        controller = guice.getInstance(BlogController.class);
+        seed(guice.getInstance(PageTransformer.class));
+    }
+
+    private void seed(PageTransformer transformer) {
+        var now = System.currentTimeMillis();
+        var secs = new ArrayList<Models.Section>();
+        for (int s = 0; s < sections; s++) {
+            var sec = new Models.Section();
+            sec.setId("0-section-" + s);
+            sec.setDisplayName("分区" + s);
+            sec.setCreatedDateTime(new Timestamp(now));
+            sec.setLastModifiedDateTime(new Timestamp(now));
+            sec.setIsDefault(s == 0);
+            secs.add(sec);
+            sectionIds.add(sec.getId());
+        }
+        blogDao.sectionSaveAll(secs);
+
+        var bodies = FIXTURES.stream().map(SeededSite::fixture).toList();
+        var n = 0;
+        for (var sectionId : sectionIds) {
+            var batch = new ArrayList<Models.Page>();
+            for (int i = 0; i < pagesPerSection; i++, n++) {
+                var page = new Models.Page();
+                page.setId(sectionId + "-page-" + i);
+                page.setSectionId(sectionId);
+                page.setTitle("第" + n + "篇 notes on caching and sync");
+                page.setCreatedDateTime(new Timestamp(now - n * 3_600_000L));
+                page.setLastModifiedDateTime(new Timestamp(now - n * 60_000L));
+                transformer.transform(page, new ByteArrayInputStream(bodies.get(n % bodies.size())));
+                batch.add(page);
+                pageIds.add(page.getId());
+            }
+            blogDao.pageSaveAll(batch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (var conn = guice.getInstance(DataSource.class).getConnection(); var st = conn.createStatement()) {
+            st.execute("SHUTDOWN");
+        }
+        FileUtil.del(dir);
+    }
+
+    static byte[] fixture(String name) {
+        return ResourceUtil.readStr("fixtures/" + name, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,45 @@
+package onelog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模板渲染(不含PageCache): 首页列表和正文页, 数据取自SeededSite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ViewBench {
+    Models.Paged<Models.Page> listing;
+    Models.Page page;
+
+    @Setup
+    public void setup(SeededSite site) {
+        listing = site.blogDao.pageList(null, 1, site.settings.getPageSize());
+        page = site.blogDao.pageGet(site.pageIds.get(1));
+    }
+
+    @Benchmark
+    public String index(SeededSite site) {
+        return site.controller.view("index.html", Map.of("pages", listing));
+    }
+
+    @Benchmark
+    public String page(SeededSite site) {
+        return site.controller.view("page.html", Map.of("page", page, "pageTitle", page.getTitle()));
+    }
+}
@@ -1,6 +1,5 @@
 package onelog;
 
-import cn.hutool.core.io.IoUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.google.inject.Inject;
@@ -9,11 +8,10 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 public class BlogController {
@@ -27,29 +25,77 @@ public class BlogController {
     MicroGraph graphApi;
     @Inject
     SyncTask syncTask;
+    @Inject
+    PageCache pageCache;
+    @Inject
+    FileSender fileSender;
+    @Inject
+    ResourceStore resourceStore;
+    @Inject
+    ImageVariants imageVariants;
+    @Inject
+    SearchIndex searchIndex;
+    @Inject
+    Metrics metrics;
+    @Inject
+    FeedService feedService;
+    @Inject
+    SiteSnapshot siteSnapshot;
+    @Inject
+    StaticAssets staticAssets;
 
     @SneakyThrows
-    private String view(String view, Map<String, Object> vars) {
+    String view(String view, Map<String, Object> vars) {
+        var site = siteSnapshot.get();
         vars = new HashMap<>(vars);
-        vars.put("sections", blogDao.sections());
+        vars.put("sections", site.sections());
+        vars.put("nav", site.nav());
+        var start = System.nanoTime();
         var t = pebbleEngine.getTemplate(view);
         var writer = new StringWriter();
         t.evaluate(writer, vars);
+        metrics.histogram("onelog_view_render_seconds", "模板渲染耗时", "view", view).since(start);
         return writer.toString();
     }
 
     public void actionIndex$(HttpExchange c) {
+        // 方法名里不能有'.', /feed.xml和/sitemap.xml挂在首页路由下
+        var first = c.path(0);
+        if (FeedService.ATOM.equals(first) || FeedService.SITEMAP.equals(first)) {
+            var feeds = feedService.get();
+            var atom = FeedService.ATOM.equals(first);
+            c.send(atom ? feeds.atom() : feeds.sitemap(), atom ? "application/atom+xml; charset=utf-8" : "application/xml; charset=utf-8", feeds.lastModified());
+            return;
+        }
+
         var page = c.paramLong("page", 1L);
         var sectionId = c.path(1);
+        // 分区id来自URL, 不存在的分区不能进入BlogDao的列表缓存和渲染缓存
+        if (StrUtil.isNotEmpty(sectionId) && !siteSnapshot.get().hasSection(sectionId)) {
+            c.response().setStatus(404);
+            return;
+        }
 
-        var pages = blogDao.pageList(sectionId, page.intValue(), settings.getPageSize());
-        c.html(view("index.html", Map.of("pages", pages)));
+        var rendered = pageCache.get(PageCache.indexKey(sectionId, page), () -> {
+            var pages = blogDao.pageList(sectionId, page.intValue(), settings.getPageSize());
+            return view("index.html", Map.of("pages", pages));
+        });
+        c.html(rendered);
     }
 
     public void actionPage$(HttpExchange c) {
         var id = c.path(0);
-        var page = blogDao.pageGet(id);
-        c.html(view("page.html", Map.of("page", page, "pageTitle", page.getTitle())));
+        var rendered = pageCache.get(PageCache.pageKey(id), () -> {
+            var page = blogDao.pageGet(id);
+            return view("page.html", Map.of("page", page, "pageTitle", page.getTitle()));
+        });
+        c.html(rendered);
+    }
+
+    public void actionSearch(HttpExchange c) {
+        var q = StrUtil.trimToEmpty(c.param("q"));
+        var hits = q.isEmpty() ? List.<SearchIndex.Hit>of() : searchIndex.search(q, settings.getSearchLimit());
+        c.html(view("search.html", Map.of("q", q, "hits", hits, "pageTitle", q)));
     }
 
     public void actionAuth(HttpExchange c) {
@@ -68,50 +114,111 @@ public class BlogController {
             return;
         }
 
-        blogDao.kvSave("graphToken", JSONUtil.toJsonStr(accessToken));
+        graphApi.saveToken(accessToken);
         c.result("ok");
     }
 
-    public void actionSync(HttpExchange c) {
-        syncTask.execute();
-        c.redirect("/");
+    /**
+     * /sync 在后台触发同步后立即跳到状态页, /sync/status 返回最近一次同步的进度.
+     */
+    public void actionSync$(HttpExchange c) {
+        if ("status".equals(c.path(0))) {
+            c.json(syncTask.status());
+            return;
+        }
+        syncTask.trigger();
+        c.redirect("/sync/status");
+    }
+
+
+    /**
+     * Prometheus抓取入口; 配置了metricsToken时需要带上?token=.
+     */
+    @SneakyThrows
+    public void actionMetrics(HttpExchange c) {
+        var token = settings.getMetricsToken();
+        if (StrUtil.isNotBlank(token) && !token.equals(c.param("token"))) {
+            c.response().setStatus(403);
+            return;
+        }
+        var body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+        c.header("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        c.header("Cache-Control", "no-store");
+        c.response().setContentLength(body.length);
+        c.response().getOutputStream().write(body);
     }
 
+    public void actionStatics$(HttpExchange c) {
+        var asset = staticAssets.get(String.join("/", c.paths()));
+        if (asset == null) {
+            c.response().setStatus(404);
+            return;
+        }
+        c.send(asset.rendered(), asset.contentType(), 0);
+    }
 
     @SneakyThrows
     public void actionResources$(HttpExchange c) {
         var fileId = c.path(0);
-        var file = downloadResource(fileId);
+        if (!ResourceStore.isValidId(fileId)) {
+            c.response().setStatus(404);
+            return;
+        }
+        var entry = resourceStore.entry(fileId);
+        metrics.counter("onelog_resource_cache_requests_total", "资源请求的缓存命中情况", "result", entry == null ? "miss" : "hit").increment();
+        if (entry == null) {
+            var download = resourceStore.download(fileId);
+            if (download != null && !download.isDone()) {
+                streamDownload(c, download);
+                return;
+            }
+            entry = resourceStore.entry(fileId);
+        }
 
-        c.header("Cache-Control", "public, max-age=31536000, immutable");
-        c.result(new FileInputStream(file));
-    }
+        var file = resourceStore.file(fileId);
+        var width = c.paramLong("w", 0L);
+        if (width > 0) {
+            var variant = imageVariants.get(entry, width.intValue(), c.request().getHeader("Accept"));
+            if (variant != null) {
+                c.header("Cache-Control", "public, max-age=31536000, immutable");
+                c.header("Vary", "Accept");
+                if (c.notModified(HttpExchange.quote(entry.getChecksum() + "-" + variant.tag()), variant.file().lastModified())) {
+                    return;
+                }
+                c.header("Content-Type", variant.contentType());
+                fileSender.send(c, variant.file());
+                return;
+            }
+        }
 
-    private final Map<String, Lock> fileLockMap = new ConcurrentHashMap<>();
+        var gzip = ResourceStore.isCompressible(entry.getContentType()) && c.acceptsEncoding("gzip");
+
+        c.header("Cache-Control", "public, max-age=31536000, immutable");
+        c.header("Vary", "Accept-Encoding");
+        if (c.notModified(HttpExchange.quote(entry.getChecksum() + (gzip ? "-gz" : "")), file.lastModified())) {
+            return;
+        }
 
-    private File downloadResource(String fileId) throws FileNotFoundException {
-        var dest = new File("./cache", fileId);
-        var tmp = new File("./cache", fileId + ".tmp-" + System.currentTimeMillis());
-        if (dest.exists()) {
-            return dest;
+        c.header("Content-Type", entry.getContentType());
+        if (gzip) {
+            c.header("Content-Encoding", "gzip");
+            fileSender.send(c, resourceStore.gzipVariant(fileId));
+            return;
         }
-        Lock fileLock = fileLockMap.computeIfAbsent(fileId, k -> new ReentrantLock());
-        fileLock.lock();
-        try {
-            if (dest.exists()) return dest;
-
-            log.info("下载文件: " + dest);
-            dest.getParentFile().mkdirs();
-            var path = "/v1.0/me/onenote/resources/" + fileId + "/$value";
-            var bytes = graphApi.graphGetBytes(path, Map.of());
-            IoUtil.write(new FileOutputStream(tmp), true, bytes);
-            //ImgUtil.compress(tmp, tmp, 0.8f);
-            tmp.renameTo(dest);
-            return dest;
-        } finally {
-            fileLock.unlock();
-            fileLockMap.remove(fileId);
-            tmp.deleteOnExit();
+        fileSender.send(c, file);
+    }
+
+    private void streamDownload(HttpExchange c, ResourceStore.Download download) throws IOException {
+        try (var is = new BufferedInputStream(download.openStream())) {
+            var contentType = download.getContentType();
+            if (contentType == null || contentType.startsWith("application/octet-stream")) {
+                contentType = ResourceStore.sniff(is);
+            }
+            c.header("Content-Type", contentType);
+            c.header("Cache-Control", "no-cache");
+            if (!"HEAD".equals(c.request().getMethod())) {
+                is.transferTo(c.response().getOutputStream());
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -3,68 +3,320 @@ package onelog;
 import cn.hutool.core.util.StrUtil;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import lombok.SneakyThrows;
 import org.v2u.stupidql.StupidQL;
 
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Singleton
 public class BlogDao {
     public static final String t_kv = "t_kv";
     public static final String t_section = "t_section";
     public static final String t_page = "t_page";
+    public static final String t_page_body = "t_page_body";
+    public static final String t_resource = "t_resource";
 
     @Inject
     private StupidQL stupidQL;
+    @Inject
+    private DataSource dataSource;
+
+    private static final String PAGE_FIELDS = """
+      select id, section_id, title, cover, summary, created_date_time, last_modified_date_time
+      """;
 
-    public LocalDateTime pageLastUpdate(String sectionId) {
+    /**
+     * 分区内已入库页面的id -> last_modified_date_time, 用于和远端列表比对.
+     */
+    public Map<String, Timestamp> pageStamps(String sectionId) {
+        return stupidQL
+          .mark(StupidQL.FIELDS, "select id, last_modified_date_time")
+          .add("from @{1}", t_page)
+          .add("where section_id = ?", sectionId)
+          .fetchBeans(Models.Page.class)
+          .stream().collect(Collectors.toMap(Models.Page::getId, Models.Page::getLastModifiedDateTime));
+    }
+
+    public Models.Page pageGet(String id) {
         var page = stupidQL
-          .select(t_page, "section_id = ?", sectionId)
-          .add("order by last_modified_date_time desc limit 1")
+          .mark(StupidQL.FIELDS, PAGE_FIELDS)
+          .add("from @{1}", t_page)
+          .add("where id = ?", id)
           .fetchBean(Models.Page.class);
+        if (page != null) {
+            page.setContent(pageBody(id));
+        }
+        return page;
+    }
 
-        return page == null ? null : page.getLastModifiedDateTime().toLocalDateTime();
+    public List<String> pageIds() {
+        return stupidQL
+          .mark(StupidQL.FIELDS, "select id")
+          .add("from @{1}", t_page)
+          .fetchBeans(Models.Page.class)
+          .stream().map(Models.Page::getId).toList();
     }
 
-    public Models.Page pageGet(String id) {
-        return stupidQL.select(t_page, "id = ?", id).fetchBean(Models.Page.class);
+    /**
+     * 订阅源用的最近limit篇, 只读t_page元数据.
+     */
+    public List<Models.Page> pageFeed(int limit) {
+        return stupidQL
+          .mark(StupidQL.FIELDS, "select p.id, p.title, p.summary, p.created_date_time, p.last_modified_date_time, s.display_name section_name")
+          .add("from @{1} p left join @{2} s on p.section_id = s.id", t_page, t_section)
+          .add("order by p.created_date_time desc, p.id desc limit ?", limit)
+          .fetchBeans(Models.Page.class);
     }
 
+    /**
+     * sitemap用的全部页面id和修改时间.
+     */
+    public List<Models.Page> pageSitemap() {
+        return stupidQL
+          .mark(StupidQL.FIELDS, "select id, section_id, last_modified_date_time")
+          .add("from @{1}", t_page)
+          .add("order by created_date_time desc, id desc")
+          .fetchBeans(Models.Page.class);
+    }
+
+    public String pageBody(String id) {
+        var body = stupidQL.select(t_page_body, "page_id = ?", id).fetchBean(Models.PageBody.class);
+        return body == null ? "" : body.decode();
+    }
+
+    /**
+     * 按页码分页. 页码先换算成该页首条记录的(created_date_time, id)游标, 再走keyset查询,
+     * 深页和首页代价相同; 总数与各页起始游标按分区缓存, 写入页面时失效.
+     * sectionId须是已存在的分区(由调用方校验), 否则缓存会被任意id撑大.
+     */
     public Models.Paged<Models.Page> pageList(String sectionId, int page, int limit) {
-        var offset = (page - 1) * limit;
+        var listing = listing(sectionId, limit);
+        var paged = new Models.Paged<Models.Page>(limit);
+        paged.setTotal(listing.total());
+        // 第一页不用游标: 缓存的游标可能早于刚同步进来的页面
+        if (page == 1) {
+            paged.setList(pageList(sectionId, null, limit));
+        } else if (page > 1 && page <= listing.starts().size()) {
+            paged.setList(pageList(sectionId, listing.starts().get(page - 1), limit));
+        }
+        return paged;
+    }
+
+    /**
+     * keyset分页: 取从游标(含)开始按created_date_time, id倒序的limit条.
+     */
+    public List<Models.Page> pageList(String sectionId, Cursor from, int limit) {
         var select = """
             select 
               p.id, p.title, p.summary, p.cover, p.last_modified_date_time, p.created_date_time, 
               s.display_name section_name 
           """;
 
-        var q = stupidQL
-          .mark(StupidQL.FIELDS, "select count(1)")
+        return stupidQL
+          .mark(StupidQL.FIELDS, select)
           .add("from @{1} p left join @{2} s on p.section_id = s.id where 1 = 1", t_page, t_section)
-          .add(StrUtil.isNotBlank(sectionId), "and section_id = ?", sectionId);
+          .add(StrUtil.isNotBlank(sectionId), "and p.section_id = ?", sectionId)
+          .add(from != null, "and (p.created_date_time < ? or (p.created_date_time = ? and p.id <= ?))",
+            from == null ? null : from.createdDateTime(), from == null ? null : from.createdDateTime(), from == null ? null : from.id())
+          .add("order by p.created_date_time desc, p.id desc limit ?", limit)
+          .fetchBeans(Models.Page.class);
+    }
 
-        var total = q.fetchScalar(Long.class);
-        var paged = new Models.Paged<Models.Page>(limit);
-        if (total > 0) {
-            var list = q.mark(StupidQL.FIELDS, select)
-              .add("order by created_date_time desc limit ?, ?", offset, limit)
-              .fetchBeans(Models.Page.class);
-            paged.setTotal(total);
-            paged.setList(list);
+    public record Cursor(Timestamp createdDateTime, String id) {
+    }
+
+    private record Listing(long total, List<Cursor> starts) {
+    }
+
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+    private final AtomicLong listingGeneration = new AtomicLong();
+
+    /**
+     * 统计期间发生过写入时结果可能早于提交, 只返回不缓存.
+     */
+    private Listing listing(String sectionId, int limit) {
+        var section = StrUtil.nullToEmpty(sectionId);
+        var key = section + "/" + limit;
+        var cached = listings.get(key);
+        if (cached != null) {
+            return cached;
         }
 
-        return paged;
+        var gen = listingGeneration.get();
+        var rows = stupidQL
+          .mark(StupidQL.FIELDS, "select id, created_date_time")
+          .add("from @{1} where 1 = 1", t_page)
+          .add(StrUtil.isNotBlank(section), "and section_id = ?", section)
+          .add("order by created_date_time desc, id desc")
+          .fetchBeans(Models.Page.class);
+
+        var starts = new ArrayList<Cursor>();
+        for (int i = 0; i < rows.size(); i += limit) {
+            starts.add(new Cursor(rows.get(i).getCreatedDateTime(), rows.get(i).getId()));
+        }
+        var listing = new Listing(rows.size(), starts);
+        // 先放入再复查: 放入后才失效的会被removeIf清掉, 放入前已失效的在这里撤回
+        listings.put(key, listing);
+        if (gen != listingGeneration.get()) {
+            listings.remove(key, listing);
+        }
+        return listing;
     }
 
-    public void pageSave(Models.Page page) {
-        var sql = """
-          merge into t_page (id, section_id, title, cover, summary, content, created_date_time, last_modified_date_time)
-          key (id)
-          values (#{id}, #{sectionId}, #{title}, #{cover}, #{summary}, #{content}, #{createdDateTime}, #{lastModifiedDateTime})
-          """;
-        stupidQL.add(sql, page).insert(String.class);
+    private void invalidateListings(Collection<String> sections) {
+        listingGeneration.incrementAndGet();
+        listings.keySet().removeIf(k -> {
+            var section = k.substring(0, k.lastIndexOf('/'));
+            return section.isEmpty() || sections.contains(section);
+        });
+    }
+
+    private static final String PAGE_MERGE = """
+      merge into t_page (id, section_id, title, cover, summary, content_hash, created_date_time, last_modified_date_time)
+      key (id)
+      values (?, ?, ?, ?, ?, ?, ?, ?)
+      """;
+
+    private static final String PAGE_BODY_MERGE = """
+      merge into t_page_body (page_id, encoding, body)
+      key (page_id)
+      values (?, ?, ?)
+      """;
+
+    private static final String PAGE_TOUCH = "update t_page set last_modified_date_time = ? where id = ?";
+
+    public Models.ChangeSet pageSave(Models.Page page) {
+        return pageSaveAll(List.of(page));
+    }
+
+    /**
+     * 一个事务内批量写入; 内容哈希未变的页面只更新last_modified_date_time, 不重写正文.
+     */
+    @SneakyThrows
+    public Models.ChangeSet pageSaveAll(List<Models.Page> pages) {
+        var changes = new Models.ChangeSet();
+        if (pages.isEmpty()) {
+            return changes;
+        }
+
+        try (var conn = dataSource.getConnection()) {
+            var hashes = pageHashes(conn, pages);
+            conn.setAutoCommit(false);
+            try (var merge = conn.prepareStatement(PAGE_MERGE);
+                 var mergeBody = conn.prepareStatement(PAGE_BODY_MERGE);
+                 var touch = conn.prepareStatement(PAGE_TOUCH)) {
+                for (var page : pages) {
+                    var hash = page.hash();
+                    page.setContentHash(hash);
+                    var old = hashes.get(page.getId());
+                    if (hash.equals(old)) {
+                        touch.setTimestamp(1, page.getLastModifiedDateTime());
+                        touch.setString(2, page.getId());
+                        touch.addBatch();
+                        changes.getUnchanged().add(page.getId());
+                        continue;
+                    }
+
+                    merge.setString(1, page.getId());
+                    merge.setString(2, page.getSectionId());
+                    merge.setString(3, page.getTitle());
+                    merge.setString(4, StrUtil.nullToEmpty(page.getCover()));
+                    merge.setString(5, StrUtil.nullToEmpty(page.getSummary()));
+                    merge.setString(6, hash);
+                    merge.setTimestamp(7, page.getCreatedDateTime());
+                    merge.setTimestamp(8, page.getLastModifiedDateTime());
+                    merge.addBatch();
+
+                    var body = Models.PageBody.of(page.getId(), page.getContent());
+                    mergeBody.setString(1, body.getPageId());
+                    mergeBody.setString(2, body.getEncoding());
+                    mergeBody.setBytes(3, body.getBody());
+                    mergeBody.addBatch();
+
+                    (old == null ? changes.getInserted() : changes.getUpdated()).add(page.getId());
+                }
+                merge.executeBatch();
+                mergeBody.executeBatch();
+                touch.executeBatch();
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        var changedIds = new HashSet<>(changes.changed());
+        invalidateListings(pages.stream().filter(p -> changedIds.contains(p.getId())).map(Models.Page::getSectionId).collect(Collectors.toSet()));
+        return changes;
+    }
+
+    public void pageDeleteAll(String sectionId, Collection<String> ids) {
+        if (ids.isEmpty()) return;
+        stupidQL.transaction(tx -> {
+            ids.forEach(id -> {
+                tx.delete(t_page_body, "page_id = ?", id);
+                tx.delete(t_page, "id = ?", id);
+            });
+            return null;
+        });
+        invalidateListings(Set.of(sectionId));
+    }
+
+    /**
+     * 全文索引重建用: 一条连接查询逐行读出全部页面的id、标题和正文, 不为每篇页面单独查库.
+     */
+    @SneakyThrows
+    public void pageTexts(Consumer<Models.Page> consumer) {
+        var sql = "select p.id, p.title, b.encoding, b.body from t_page p left join t_page_body b on b.page_id = p.id";
+        try (var conn = dataSource.getConnection();
+             var ps = conn.prepareStatement(sql);
+             var rs = ps.executeQuery()) {
+            while (rs.next()) {
+                var page = new Models.Page();
+                page.setId(rs.getString(1));
+                page.setTitle(rs.getString(2));
+                var body = new Models.PageBody();
+                body.setEncoding(rs.getString(3));
+                body.setBody(rs.getBytes(4));
+                page.setContent(body.getBody() == null ? "" : body.decode());
+                consumer.accept(page);
+            }
+        }
+    }
+
+    private static Map<String, String> pageHashes(Connection conn, List<Models.Page> pages) throws SQLException {
+        var sql = "select id, content_hash from t_page where id in ("
+          + String.join(", ", Collections.nCopies(pages.size(), "?")) + ")";
+        var hashes = new HashMap<String, String>();
+        try (var ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < pages.size(); i++) {
+                ps.setString(i + 1, pages.get(i).getId());
+            }
+            try (var rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    hashes.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        }
+        return hashes;
     }
 
     public String kvGet(String name) {
@@ -83,6 +335,30 @@ public class BlogDao {
         return stupidQL.select(t_section).fetchBeans(Models.Section.class);
     }
 
+    private static final String SECTION_MERGE = """
+      merge into t_section (id, display_name, created_date_time, last_modified_date_time, is_default)
+      key (id)
+      values (#{id}, #{displayName}, #{createdDateTime}, #{lastModifiedDateTime}, #{isDefault})
+      """;
+
+    public void sectionSaveAll(Collection<Models.Section> sections) {
+        stupidQL.transaction(tx -> {
+            sections.forEach(it -> tx.add(SECTION_MERGE, it).insert(String.class));
+            return null;
+        });
+    }
+
+    /**
+     * 分区内页面全部同步成功后才推进分区的last_modified_date_time, 失败的分区下次仍会重新比对.
+     */
+    public void sectionTouch(String id, Timestamp lastModified) {
+        stupidQL.add("update t_section set last_modified_date_time = ? where id = ?", lastModified, id).update();
+    }
+
+    public void sectionDelete(String id) {
+        stupidQL.delete(t_section, "id = ?", id);
+    }
+
     public void kvSave(String name, String val) {
         var it = new Models.Kv();
         it.setName(name);
@@ -92,4 +368,25 @@ public class BlogDao {
         var sql = "merge into t_kv (name, val) key(name) values (#{name}, #{val})";
         stupidQL.add(sql, it).insert();
     }
-}
\ No newline at end of file
+
+    public List<Models.Resource> resources() {
+        return stupidQL.select(t_resource).fetchBeans(Models.Resource.class);
+    }
+
+    private static final String RESOURCE_MERGE = """
+      merge into t_resource (id, size, content_type, checksum, last_access)
+      key (id)
+      values (#{id}, #{size}, #{contentType}, #{checksum}, #{lastAccess})
+      """;
+
+    public void resourceSaveAll(Collection<Models.Resource> resources) {
+        stupidQL.transaction(tx -> {
+            resources.forEach(it -> tx.add(RESOURCE_MERGE, it).insert(String.class));
+            return null;
+        });
+    }
+
+    public void resourceDelete(String id) {
+        stupidQL.delete(t_resource, "id = ?", id);
+    }
+}
@@ -0,0 +1,184 @@
+package onelog;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在H2连接池外记录取连接的等待时间和使用情况, 并给连接套一层代理按SQL记录执行耗时.
+ */
+public class DbPool implements DataSource {
+    private static final Set<String> TIMED = Set.of("execute", "executeQuery", "executeUpdate", "executeLargeUpdate", "executeBatch", "executeLargeBatch");
+    private static final Pattern IN_LIST = Pattern.compile("\\(\\?(\\s*,\\s*\\?)+\\)");
+    private static final int MAX_SQL_LABEL = 120;
+
+    private final JdbcConnectionPool pool;
+    private final Metrics metrics;
+    private final Metrics.Histogram waitHistogram;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+
+    public DbPool(JdbcConnectionPool pool, Metrics metrics) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.waitHistogram = metrics.histogram("onelog_db_pool_wait_seconds", "取连接的等待时间");
+        metrics.gauge("onelog_db_pool_active", "使用中的连接数", this::active);
+        metrics.gauge("onelog_db_pool_max", "连接池上限", this::max);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        var start = System.nanoTime();
+        try {
+            var conn = pool.getConnection();
+            acquired.increment();
+            return timed(conn);
+        } catch (SQLException e) {
+            timeouts.increment();
+            metrics.counter("onelog_db_pool_timeouts_total", "取连接超时次数").increment();
+            throw e;
+        } finally {
+            var waited = waitHistogram.since(start);
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return timed(pool.getConnection(username, password));
+    }
+
+    private Connection timed(Connection conn) {
+        return proxy(Connection.class, conn, (method, args) -> {
+            var result = method.invoke(conn, args);
+            if (result instanceof PreparedStatement ps && args != null && args[0] instanceof String sql) {
+                return proxy(PreparedStatement.class, ps, timing(ps, sql));
+            }
+            if (result instanceof Statement st && !(result instanceof PreparedStatement)) {
+                return proxy(Statement.class, st, timing(st, null));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Statement的sql在execute参数里, PreparedStatement的sql在prepare时给出.
+     */
+    private Invoker timing(Statement target, String preparedSql) {
+        return (method, args) -> {
+            if (!TIMED.contains(method.getName())) {
+                return method.invoke(target, args);
+            }
+            var sql = preparedSql != null ? preparedSql : args != null && args.length > 0 && args[0] instanceof String s ? s : "batch";
+            var start = System.nanoTime();
+            try {
+                return method.invoke(target, args);
+            } finally {
+                metrics.histogram("onelog_db_query_seconds", "SQL执行耗时(不含惰性结果集的读取)", "sql", normalize(sql)).since(start);
+            }
+        };
+    }
+
+    static String normalize(String sql) {
+        var s = IN_LIST.matcher(sql.replaceAll("\\s+", " ").trim()).replaceAll("(?...)");
+        return s.length() > MAX_SQL_LABEL ? s.substring(0, MAX_SQL_LABEL) + "..." : s;
+    }
+
+    private interface Invoker {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, T target, Invoker invoker) {
+        return (T) Proxy.newProxyInstance(DbPool.class.getClassLoader(), new Class[]{type}, (p, method, args) -> {
+            try {
+                return invoker.invoke(method, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return pool.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return pool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(pool) ? iface.cast(pool) : pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(pool) || pool.isWrapperFor(iface);
+    }
+
+    public int active() {
+        return pool.getActiveConnections();
+    }
+
+    public int max() {
+        return pool.getMaxConnections();
+    }
+
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public double avgWaitMillis() {
+        var n = acquired.sum() + timeouts.sum();
+        return n == 0 ? 0 : waitNanos.sum() / 1e6 / n;
+    }
+
+    public double maxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d/%d, acquired=%d, timeouts=%d, avgWait=%.2fms, maxWait=%.2fms",
+          active(), max(), acquired(), timeouts(), avgWaitMillis(), maxWaitMillis());
+    }
+}
@@ -0,0 +1,153 @@
+package onelog;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.util.XmlUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * /feed.xml(Atom)和/sitemap.xml: 只由t_page元数据生成, 常驻内存,
+ * 同步中有页面增删改时才重建; 输出带ETag/Last-Modified, 支持条件请求.
+ */
+@Slf4j
+@Singleton
+public class FeedService {
+    public static final String ATOM = "feed.xml";
+    public static final String SITEMAP = "sitemap.xml";
+
+    @Inject
+    Settings settings;
+    @Inject
+    BlogDao blogDao;
+    @Inject
+    SiteSnapshot siteSnapshot;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Feeds feeds;
+
+    public record Feeds(PageCache.Rendered atom, PageCache.Rendered sitemap, long lastModified) {
+    }
+
+    public Feeds get() {
+        var f = feeds;
+        if (f == null) {
+            lock.lock();
+            try {
+                f = feeds;
+                if (f == null) {
+                    f = feeds = build();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return f;
+    }
+
+    /**
+     * 同步后的钩子, 没有页面变化时保留现有内容(ETag不变, 客户端继续拿304).
+     */
+    public void onSynced(Models.ChangeSet changes) {
+        if (changes.isEmpty() && feeds != null) return;
+        lock.lock();
+        try {
+            feeds = build();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Feeds build() {
+        var start = System.currentTimeMillis();
+        var base = siteUrl();
+        var lastModified = 0L;
+        var sectionModified = new HashMap<String, Long>();
+
+        var pages = blogDao.pageSitemap();
+        for (var page : pages) {
+            var modified = millis(page.getLastModifiedDateTime());
+            lastModified = Math.max(lastModified, modified);
+            sectionModified.merge(StrUtil.nullToEmpty(page.getSectionId()), modified, Math::max);
+        }
+
+        var sitemap = new StringBuilder(64 * 1024);
+        sitemap.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sitemap.append("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        url(sitemap, base + "/", lastModified);
+        for (var section : siteSnapshot.get().sections()) {
+            url(sitemap, base + "/section/" + section.id(), sectionModified.getOrDefault(section.id(), 0L));
+        }
+        for (var page : pages) {
+            url(sitemap, base + "/page/" + page.getId(), millis(page.getLastModifiedDateTime()));
+        }
+        sitemap.append("</urlset>\n");
+
+        var atom = new StringBuilder(16 * 1024);
+        atom.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        atom.append("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+        atom.append("  <title>").append(escape(settings.getTitle())).append("</title>\n");
+        atom.append("  <id>").append(escape(base + "/")).append("</id>\n");
+        atom.append("  <link href=\"").append(escape(base + "/")).append("\"/>\n");
+        atom.append("  <link rel=\"self\" href=\"").append(escape(base + "/" + ATOM)).append("\"/>\n");
+        atom.append("  <updated>").append(date(lastModified)).append("</updated>\n");
+        atom.append("  <author><name>").append(escape(settings.getTitle())).append("</name></author>\n");
+        for (var page : blogDao.pageFeed(settings.getFeedSize())) {
+            var link = base + "/page/" + page.getId();
+            atom.append("  <entry>\n");
+            atom.append("    <title>").append(escape(page.getTitle())).append("</title>\n");
+            atom.append("    <id>").append(escape(link)).append("</id>\n");
+            atom.append("    <link href=\"").append(escape(link)).append("\"/>\n");
+            atom.append("    <published>").append(date(millis(page.getCreatedDateTime()))).append("</published>\n");
+            atom.append("    <updated>").append(date(millis(page.getLastModifiedDateTime()))).append("</updated>\n");
+            if (StrUtil.isNotBlank(page.getSectionName())) {
+                atom.append("    <category term=\"").append(escape(page.getSectionName())).append("\"/>\n");
+            }
+            if (StrUtil.isNotBlank(page.getSummary())) {
+                atom.append("    <summary>").append(escape(page.getSummary())).append("</summary>\n");
+            }
+            atom.append("  </entry>\n");
+        }
+        atom.append("</feed>\n");
+
+        log.info("订阅源和sitemap已生成: {}篇, {}ms", pages.size(), System.currentTimeMillis() - start);
+        return new Feeds(PageCache.Rendered.of(atom.toString()), PageCache.Rendered.of(sitemap.toString()), lastModified);
+    }
+
+    private static void url(StringBuilder sb, String loc, long lastModified) {
+        sb.append("  <url><loc>").append(escape(loc)).append("</loc>");
+        if (lastModified > 0) sb.append("<lastmod>").append(date(lastModified)).append("</lastmod>");
+        sb.append("</url>\n");
+    }
+
+    /**
+     * 订阅源和sitemap都要求绝对地址.
+     */
+    private String siteUrl() {
+        var url = settings.getSiteUrl();
+        if (StrUtil.isBlank(url) && StrUtil.isNotBlank(settings.getCallbackUrl())) {
+            var uri = URI.create(settings.getCallbackUrl());
+            url = uri.getScheme() + "://" + uri.getRawAuthority();
+        }
+        return StrUtil.removeSuffix(StrUtil.nullToEmpty(url), "/");
+    }
+
+    private static long millis(Timestamp ts) {
+        return ts == null ? 0 : ts.getTime();
+    }
+
+    private static String date(long millis) {
+        return Instant.ofEpochMilli(millis).truncatedTo(ChronoUnit.SECONDS).toString();
+    }
+
+    private static String escape(String s) {
+        return XmlUtil.escape(StrUtil.nullToEmpty(s));
+    }
+}
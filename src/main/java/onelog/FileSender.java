@@ -0,0 +1,223 @@
+package onelog;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 静态文件输出, 支持HEAD和单段Range请求. 容器输出流能直接写ByteBuffer时, 热点小文件走内存映射池,
+ * 其余文件读进池化的直接缓冲区再写出, 都不经过堆内byte[]; 否则退回FileChannel.transferTo.
+ */
+@Slf4j
+@Singleton
+public class FileSender {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final ClassValue<Optional<MethodHandle>> BUFFER_WRITE = new ClassValue<>() {
+        @Override
+        protected Optional<MethodHandle> computeValue(Class<?> type) {
+            return bufferWrite(type);
+        }
+    };
+
+    @Inject
+    Settings settings;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Mapped> mappedFiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long mappedBytes = 0;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private record Mapped(long lastModified, MappedByteBuffer buffer) {
+    }
+
+    public void send(HttpExchange c, File file) throws IOException {
+        var req = c.request();
+        var res = c.response();
+        var length = file.length();
+
+        long start = 0;
+        long end = length - 1;
+        res.setHeader("Accept-Ranges", "bytes");
+
+        var range = req.getHeader("Range");
+        if (range != null && ifRangeMatches(c, file)) {
+            var r = parseRange(range, length);
+            if (r == null) {
+                res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+            if (r.length == 2) {
+                start = r[0];
+                end = r[1];
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        var count = end - start + 1;
+        res.setContentLengthLong(Math.max(count, 0));
+        if ("HEAD".equals(req.getMethod()) || count <= 0) {
+            return;
+        }
+
+        var os = res.getOutputStream();
+        var write = BUFFER_WRITE.get(os.getClass()).orElse(null);
+        var mapped = write == null ? null : mapped(file);
+        if (mapped != null) {
+            writeBuffer(write, os, mapped.duplicate().limit((int) (end + 1)).position((int) start));
+        } else if (write != null) {
+            var buf = buffers.poll();
+            if (buf == null) buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (var ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                var pos = start;
+                while (pos <= end) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), end - pos + 1));
+                    var n = ch.read(buf, pos);
+                    if (n <= 0) break;
+                    pos += n;
+                    writeBuffer(write, os, buf.flip());
+                }
+            } finally {
+                if (buffers.size() < MAX_POOLED_BUFFERS) buffers.offer(buf);
+            }
+        } else {
+            // 容器不支持写ByteBuffer, 只能经Channels.newChannel的堆内缓冲中转, 映射池也就没有意义
+            var out = Channels.newChannel(os);
+            try (var ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                var pos = start;
+                while (pos <= end) {
+                    var n = ch.transferTo(pos, end - pos + 1, out);
+                    if (n <= 0) break;
+                    pos += n;
+                }
+            }
+        }
+        os.flush();
+    }
+
+    @SneakyThrows
+    private static void writeBuffer(MethodHandle write, OutputStream os, ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            write.invokeExact(os, buf);
+        }
+    }
+
+    /**
+     * 只支持单段Range; 多段请求返回空数组按整文件输出, 无法满足时返回null.
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        var spec = range.substring(6).trim();
+        var dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            var from = spec.substring(0, dash).trim();
+            var to = spec.substring(dash + 1).trim();
+            long start, end;
+            if (from.isEmpty()) {
+                var suffix = Long.parseLong(to);
+                if (suffix <= 0) return null;
+                start = Math.max(length - suffix, 0);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(from);
+                end = to.isEmpty() ? length - 1 : Math.min(Long.parseLong(to), length - 1);
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    static boolean ifRangeMatches(HttpExchange c, File file) {
+        var ifRange = c.request().getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(c.response().getHeader("ETag"));
+        }
+        return c.request().getDateHeader("If-Range") / 1000 >= file.lastModified() / 1000;
+    }
+
+    /**
+     * 文件的只读映射, 不适合映射时返回null. 映射不主动解除: 容器可能还持有写出去的切片,
+     * 提前unmap会直接让JVM崩溃; 淘汰的映射等GC回收, mappedCacheBytes只是软上限.
+     */
+    private MappedByteBuffer mapped(File file) throws IOException {
+        var length = file.length();
+        if (length == 0 || length > settings.getMappedFileMaxBytes()) {
+            return null;
+        }
+
+        var key = file.getAbsolutePath();
+        lock.lock();
+        try {
+            var m = mappedFiles.get(key);
+            if (m != null && m.lastModified() == file.lastModified()) {
+                return m.buffer();
+            }
+            if (m != null) {
+                mappedFiles.remove(key);
+                mappedBytes -= m.buffer().capacity();
+            }
+
+            try (var ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                m = new Mapped(file.lastModified(), ch.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            }
+            mappedFiles.put(key, m);
+            mappedBytes += length;
+
+            var it = mappedFiles.values().iterator();
+            while (mappedBytes > settings.getMappedCacheBytes() && it.hasNext()) {
+                var evicted = it.next();
+                mappedBytes -= evicted.buffer().capacity();
+                it.remove();
+            }
+            return m.buffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Jetty的HttpOutput和Servlet 6.1的ServletOutputStream都有write(ByteBuffer), 按类查一次缓存起来.
+     */
+    private static Optional<MethodHandle> bufferWrite(Class<?> type) {
+        try {
+            var method = type.getMethod("write", ByteBuffer.class);
+            return Optional.of(MethodHandles.publicLookup().unreflect(method)
+              .asType(MethodType.methodType(void.class, OutputStream.class, ByteBuffer.class)));
+        } catch (ReflectiveOperationException e) {
+            log.warn("输出流不支持写ByteBuffer, 文件经堆内缓冲输出: {}", type.getName());
+            return Optional.empty();
+        }
+    }
+}
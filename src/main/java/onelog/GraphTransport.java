@@ -0,0 +1,223 @@
+package onelog;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graph请求通道: 复用HTTP/2连接, 对429/5xx和网络错误按指数退避加抖动重试, 优先遵守Retry-After.
+ * 响应正文带读空闲超时, 卡住的流由看门狗关闭, 读方得到IOException.
+ */
+@Slf4j
+@Singleton
+public class GraphTransport {
+    private static final Set<Integer> RETRYABLE = Set.of(429, 500, 502, 503, 504);
+    private static final Set<String> OPERATIONS = Set.of("notebooks", "sections", "pages", "resources", "content");
+
+    private final Settings.Graph config;
+    private final HttpClient client;
+    private final Metrics metrics;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(ResourceStore.daemon("graph-watchdog"));
+
+    @Inject
+    public GraphTransport(Settings settings, Metrics metrics) {
+        this.config = settings.getGraph();
+        this.metrics = metrics;
+        this.client = HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_2)
+          .connectTimeout(Duration.ofMillis(config.getConnectTimeout()))
+          .followRedirects(HttpClient.Redirect.NORMAL)
+          .build();
+    }
+
+    /**
+     * 200响应的body流和Content-Type(没有时为null), body由调用方负责关闭.
+     */
+    public record Response(InputStream body, String contentType) {
+    }
+
+    /**
+     * 返回200响应的body流, 由调用方负责关闭.
+     */
+    public InputStream get(String url, String accessToken) {
+        return open(url, accessToken).body();
+    }
+
+    @SneakyThrows
+    public Response open(String url, String accessToken) {
+        var req = HttpRequest.newBuilder(URI.create(url))
+          .timeout(Duration.ofMillis(config.getRequestTimeout()))
+          .header("Authorization", "Bearer " + accessToken)
+          .GET()
+          .build();
+
+        var op = operation(url);
+        for (int attempt = 0; ; attempt++) {
+            HttpResponse<InputStream> resp;
+            var start = System.nanoTime();
+            try {
+                resp = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException e) {
+                record(op, "error", start);
+                if (attempt >= config.getMaxRetries()) throw e;
+                var delay = backoff(attempt);
+                log.warn("请求graph异常, {}ms后重试: {} {}", delay, url, e.getMessage());
+                Thread.sleep(delay);
+                continue;
+            }
+
+            var status = resp.statusCode();
+            record(op, String.valueOf(status), start);
+            var stream = new IdleTimeoutStream(resp.body(), config.getReadTimeout(), watchdog, url);
+            if (status == 200) {
+                return new Response(stream, resp.headers().firstValue("Content-Type").orElse(null));
+            }
+
+            String body;
+            try (var is = stream) {
+                body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (!RETRYABLE.contains(status) || attempt >= config.getMaxRetries()) {
+                throw new RuntimeException("请求graph失败: " + status + " " + body);
+            }
+
+            var retryAfter = resp.headers().firstValue("Retry-After").map(GraphTransport::parseRetryAfter).orElse(-1L);
+            var delay = retryAfter >= 0 ? Math.min(retryAfter, config.getMaxBackoff()) : backoff(attempt);
+            if (retryAfter > delay) {
+                // 服务端要求的等待可能长达数小时, 同步和下载线程不能这样挂着, 最多等maxBackoff
+                log.warn("请求graph返回{}, Retry-After要求等待{}ms, 按上限{}ms后重试: {}", status, retryAfter, delay, url);
+            } else {
+                log.warn("请求graph返回{}, {}ms后重试: {}", status, delay, url);
+            }
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * 读空闲超时: 看门狗定期检查最近一次读到数据的时间, 超时就关闭底层流.
+     * HttpClient的流被关闭后read返回-1, 这里改为抛异常, 避免把截断的正文当成完整的.
+     */
+    static class IdleTimeoutStream extends FilterInputStream {
+        private final long timeoutNanos;
+        private final String url;
+        private final ScheduledFuture<?> check;
+        private volatile long lastRead = System.nanoTime();
+        private volatile boolean timedOut = false;
+
+        IdleTimeoutStream(InputStream in, long timeoutMillis, ScheduledExecutorService watchdog, String url) {
+            super(in);
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.url = url;
+            var period = Math.max(100, timeoutMillis / 4);
+            this.check = watchdog.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void check() {
+            if (System.nanoTime() - lastRead < timeoutNanos) return;
+            timedOut = true;
+            check.cancel(false);
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return touched(super.read());
+            } catch (IOException e) {
+                throw timedOut ? timeout() : e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return touched(super.read(b, off, len));
+            } catch (IOException e) {
+                throw timedOut ? timeout() : e;
+            }
+        }
+
+        private int touched(int n) throws IOException {
+            if (timedOut) {
+                throw timeout();
+            }
+            lastRead = System.nanoTime();
+            return n;
+        }
+
+        private IOException timeout() {
+            return new SocketTimeoutException("读取graph响应超时: " + url);
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+    }
+
+    /**
+     * 记录到响应头为止的耗时; 正文是流式读取的, 读取时间算在调用方.
+     */
+    private void record(String op, String status, long start) {
+        metrics.histogram("onelog_graph_request_seconds", "Graph请求耗时(到响应头)", "op", op).since(start);
+        metrics.counter("onelog_graph_requests_total", "Graph请求数(含重试)", "op", op, "status", status).increment();
+    }
+
+    /**
+     * 去掉id, 只保留集合名作为指标标签, 如 pages_content, sections_pages, resources.
+     */
+    static String operation(String url) {
+        var query = url.indexOf('?');
+        var parts = (query < 0 ? url : url.substring(0, query)).split("/");
+        var op = new StringBuilder();
+        for (var part : parts) {
+            if (!OPERATIONS.contains(part)) continue;
+            if (!op.isEmpty()) op.append('_');
+            op.append(part);
+        }
+        return op.isEmpty() ? "me" : op.toString();
+    }
+
+    private long backoff(int attempt) {
+        var cap = Math.min(config.getMaxBackoff(), config.getBaseBackoff() << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    static long parseRetryAfter(String value) {
+        try {
+            var seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                var at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (Exception ignored) {
+                return -1;
+            }
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package onelog;
 
-import cn.hutool.core.util.StrUtil;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lombok.SneakyThrows;
 import org.v2u.doge.DogeExchange;
 import org.v2u.doge.JacksonJsonMapper;
 import org.v2u.doge.JsonMapper;
@@ -10,28 +10,154 @@ import org.v2u.doge.JsonMapper;
 public class HttpExchange extends DogeExchange {
     private static final JsonMapper MAPPER = new JacksonJsonMapper();
 
+    private String fullPath;
+    private int[] bounds;
+    private String[] segments;
+
     public HttpExchange(HttpServletRequest req, HttpServletResponse res) {
         super(req, res);
         jsonMapper(MAPPER);
     }
 
+    /**
+     * servlet path之后按'/'切分的各段, 与split("/")语义相同(保留中间空段, 去掉末尾空段).
+     * 每个请求只扫描一次, 段的起止位置记在一个int数组里, 段字符串在首次取用时截取并缓存.
+     */
+    private void parse() {
+        if (bounds != null) return;
+        var full = path();
+        var prefix = request().getServletPath();
+        var from = prefix != null && full.startsWith(prefix) ? prefix.length() : 0;
+        var len = full.length();
+        while (from < len && full.charAt(from) == '/') from++;
+        var to = len;
+        while (to > from && full.charAt(to - 1) == '/') to--;
+
+        var count = 1;
+        for (int i = from; i < to; i++) {
+            if (full.charAt(i) == '/') count++;
+        }
+        var b = new int[count * 2];
+        var n = 0;
+        var start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || full.charAt(i) == '/') {
+                b[n++] = start;
+                b[n++] = i;
+                start = i + 1;
+            }
+        }
+        fullPath = full;
+        bounds = b;
+        segments = new String[count];
+    }
+
     public String[] paths() {
-        var extraPath = StrUtil.removePrefix(path(), request().getServletPath())
-          .replaceFirst("^/*", "");
-        return extraPath.split("/");
+        parse();
+        for (int i = 0; i < segments.length; i++) {
+            path(i);
+        }
+        return segments.clone();
     }
 
     public String path(int idx) {
-        var paths = paths();
-        if (idx >= paths.length) return null;
-        return paths[idx];
+        parse();
+        if (idx < 0 || idx >= segments.length) return null;
+        var seg = segments[idx];
+        if (seg == null) {
+            seg = fullPath.substring(bounds[idx * 2], bounds[idx * 2 + 1]);
+            segments[idx] = seg;
+        }
+        return seg;
     }
 
+    /**
+     * 不用异常做分支: 空值、非数字和溢出都返回默认值.
+     */
     public Long paramLong(String name, Long dfv) {
-        try {
-            return Long.parseLong(param(name));
-        } catch (NumberFormatException e) {
-            return dfv;
+        var v = param(name);
+        if (v == null || v.isEmpty()) return dfv;
+        var negative = v.charAt(0) == '-';
+        var i = negative || v.charAt(0) == '+' ? 1 : 0;
+        if (i == v.length()) return dfv;
+        long result = 0;
+        for (; i < v.length(); i++) {
+            var d = v.charAt(i) - '0';
+            if (d < 0 || d > 9) return dfv;
+            if (result > (Long.MAX_VALUE - d) / 10) return dfv;
+            result = result * 10 + d;
+        }
+        return negative ? -result : result;
+    }
+
+    public boolean acceptsEncoding(String encoding) {
+        var header = request().getHeader("Accept-Encoding");
+        if (header == null) return false;
+        for (var part : header.split(",")) {
+            var kv = part.trim().split(";");
+            if (!kv[0].trim().equalsIgnoreCase(encoding) && !kv[0].trim().equals("*")) continue;
+            return kv.length < 2 || !kv[1].replace(" ", "").matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    /**
+     * 按If-None-Match/If-Modified-Since判断缓存是否仍有效, 有效时直接回304.
+     */
+    public boolean notModified(String etag, long lastModified) {
+        var res = response();
+        if (etag != null) res.setHeader("ETag", etag);
+        if (lastModified > 0) res.setDateHeader("Last-Modified", lastModified);
+
+        var ifNoneMatch = request().getHeader("If-None-Match");
+        boolean match;
+        if (ifNoneMatch != null) {
+            match = etag != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag));
+        } else {
+            var since = request().getDateHeader("If-Modified-Since");
+            match = lastModified > 0 && since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+
+        if (match) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return match;
+    }
+
+    /**
+     * 输出渲染缓存中的HTML, 客户端支持时直接发预先压缩好的gzip变体.
+     */
+    public void html(PageCache.Rendered rendered) {
+        send(rendered, "text/html; charset=utf-8", 0);
+    }
+
+    /**
+     * 输出预先渲染好的内容, 带ETag(和可选的Last-Modified)支持条件请求.
+     */
+    @SneakyThrows
+    public void send(PageCache.Rendered rendered, String contentType, long lastModified) {
+        var res = response();
+        res.setHeader("Vary", "Accept-Encoding");
+        res.setHeader("Cache-Control", "no-cache");
+
+        var gzip = rendered.gzip() != null && acceptsEncoding("gzip");
+        if (notModified(quote(rendered.etag() + (gzip ? "-gz" : "")), lastModified)) {
+            return;
+        }
+
+        var body = rendered.body();
+        if (gzip) {
+            res.setHeader("Content-Encoding", "gzip");
+            body = rendered.gzip();
         }
+        res.setContentType(contentType);
+        res.setContentLength(body.length);
+        if (!"HEAD".equals(request().getMethod())) {
+            res.getOutputStream().write(body);
+        }
+    }
+
+    public static String quote(String etag) {
+        return "\"" + etag + "\"";
     }
-}
\ No newline at end of file
+}
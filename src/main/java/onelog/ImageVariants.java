@@ -0,0 +1,143 @@
+package onelog;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 图片衍生图: 按宽度档位缩放并重新编码, 首次请求时生成, 与原图一起放在缓存目录.
+ * 客户端Accept支持且JVM里有对应ImageIO编码器时输出webp/avif, 否则输出jpeg/png.
+ */
+@Slf4j
+@Singleton
+public class ImageVariants {
+    private static final List<String> PREFERRED = List.of("image/avif", "image/webp");
+    private static final float QUALITY = 0.8f;
+
+    @Inject
+    Settings settings;
+    @Inject
+    ResourceStore resourceStore;
+
+    private final SingleFlight<String, File> building = new SingleFlight<>();
+    private final Set<String> passthrough = ConcurrentHashMap.newKeySet();
+
+    public record Variant(File file, String contentType, String tag) {
+    }
+
+    /**
+     * 返回不小于width的最小档位衍生图(超过所有档位时取最大档); 原图不需要缩放或不是可处理的位图时返回null.
+     */
+    public Variant get(Models.Resource entry, int width, String accept) {
+        var source = entry.getContentType();
+        if (!source.equals("image/jpeg") && !source.equals("image/png") && !source.equals("image/bmp")) {
+            return null;
+        }
+
+        var target = pickWidth(width);
+        var contentType = pickType(source, accept);
+        var ext = contentType.substring("image/".length());
+        var tag = "w" + target + "-" + ext;
+        var file = new File(resourceStore.file(entry.getId()).getParentFile(), entry.getId() + "." + tag);
+        if (file.exists()) {
+            return new Variant(file, contentType, tag);
+        }
+        if (passthrough.contains(file.getName())) {
+            return null;
+        }
+
+        try {
+            var built = building.run(file.getName(), () -> build(entry.getId(), target, ext, file));
+            if (built == null) {
+                passthrough.add(file.getName());
+                return null;
+            }
+            return new Variant(built, contentType, tag);
+        } catch (RuntimeException e) {
+            log.warn("生成衍生图失败: {} {}", file.getName(), ExceptionUtil.getRootCauseMessage(e));
+            return null;
+        }
+    }
+
+    private int pickWidth(int width) {
+        var widths = settings.getImageWidths();
+        var picked = widths.get(widths.size() - 1);
+        for (var w : widths) {
+            if (w >= width) {
+                picked = w;
+                break;
+            }
+        }
+        return picked;
+    }
+
+    private static String pickType(String source, String accept) {
+        if (accept != null) {
+            for (var type : PREFERRED) {
+                if (accept.contains(type) && ImageIO.getImageWritersByMIMEType(type).hasNext()) {
+                    return type;
+                }
+            }
+        }
+        return source.equals("image/png") ? "image/png" : "image/jpeg";
+    }
+
+    private File build(String fileId, int width, String ext, File dest) {
+        try {
+            var image = ImageIO.read(resourceStore.file(fileId));
+            if (image == null || image.getWidth() <= width) {
+                return null;
+            }
+
+            var height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+            var alpha = ext.equals("png") && image.getColorModel().hasAlpha();
+            var scaled = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            var g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+
+            var tmp = new File(dest.getParentFile(), dest.getName() + ".tmp-" + System.currentTimeMillis());
+            write(scaled, "image/" + ext, tmp);
+            Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            resourceStore.sidecarAdded(fileId, dest);
+            return dest;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void write(BufferedImage image, String contentType, File file) throws IOException {
+        var writer = ImageIO.getImageWritersByMIMEType(contentType).next();
+        try (var out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            var param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
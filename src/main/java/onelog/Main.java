@@ -1,5 +1,6 @@
 package onelog;
 
+import cn.hutool.core.util.StrUtil;
 import cn.hutool.cron.CronUtil;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
@@ -22,11 +23,15 @@ import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.representer.Representer;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Slf4j
 public class Main extends AbstractModule {
@@ -41,13 +46,35 @@ public class Main extends AbstractModule {
         var apiModule = new Main(config);
         var guice = Guice.createInjector(apiModule);
 
+        // onelog.jar config.yml --export [dir]: 只把当前数据库导出成静态站点后退出
+        if (args.length > 1 && args[1].equals("--export")) {
+            var dir = args.length > 2 ? args[2] : config.getExportDir();
+            if (StrUtil.isBlank(dir)) {
+                log.error("导出目录缺失");
+                return;
+            }
+            guice.getInstance(StaticExporter.class).exportAll(new File(dir));
+            System.exit(0);
+        }
+
         var ctrl = guice.getInstance(BlogController.class);
+        var metrics = guice.getInstance(Metrics.class);
         var doge = new Doge<>(HttpExchange::new)
           .idleTimeout(5000)
           .port(config.getPort())
           .install(new SimpleTracePlugin())
-          .install(new CorsPlugin())
-          .staticDir("/statics", "classpath:/statics")
+          .install(new CorsPlugin());
+        if (config.isVirtualThreads()) {
+            var executor = virtualThreadExecutor();
+            if (executor != null) {
+                doge.filter("/*", (c, next) -> dispatch(executor, c, next));
+                log.info("请求在虚拟线程上处理");
+            } else {
+                log.warn("当前JDK不支持虚拟线程, 忽略virtualThreads配置: {}", Runtime.version());
+            }
+        }
+        doge
+          .filter("/*", (c, next) -> timeRoute(metrics, c, next))
           .filter("/*", Main::errorHandler)
           .routeStrategy(Main::routeStrategy)
           .attach(List.of(ctrl));
@@ -57,7 +84,12 @@ public class Main extends AbstractModule {
 
         log.info("web server started on port: {}", doge.port());
 
-        CronUtil.schedule(config.getCronExpr(), guice.getInstance(SyncTask.class));
+        CompletableFuture.runAsync(guice.getInstance(SearchIndex.class)::rebuild);
+
+        var syncTask = guice.getInstance(SyncTask.class);
+        syncTask.addListener(guice.getInstance(FeedService.class)::onSynced);
+        syncTask.addListener(guice.getInstance(StaticExporter.class)::onSynced);
+        CronUtil.schedule(config.getCronExpr(), syncTask);
         CronUtil.start();
         Runtime.getRuntime().addShutdownHook(new Thread(CronUtil::stop));
     }
@@ -108,24 +140,82 @@ public class Main extends AbstractModule {
     @Provides
     @Singleton
     @SneakyThrows
-    public StupidQL initStupidQL() {
+    public DataSource initDataSource(Metrics metrics) {
         var c = settings.getH2();
-        var db = new Server();
-        db.runTool(
-          "-ifNotExists",
-          "-baseDir", c.getBaseDir(),
-          "-web", "-webAllowOthers", "-webPort", c.getWebPort(), "-webExternalNames", c.getExternalNames(),
-          "-tcp", "-tcpAllowOthers", "-tcpPort", c.getTcpPort()
-        );
+        if (c.isServer() || !c.isEmbedded()) {
+            var db = new Server();
+            db.runTool(
+              "-ifNotExists",
+              "-baseDir", c.getBaseDir(),
+              "-web", "-webAllowOthers", "-webPort", c.getWebPort(), "-webExternalNames", c.getExternalNames(),
+              "-tcp", "-tcpAllowOthers", "-tcpPort", c.getTcpPort()
+            );
+            Runtime.getRuntime().addShutdownHook(new Thread(db::shutdown));
+        }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(db::shutdown));
+        var pool = JdbcConnectionPool.create(c.getJdbcUrl(), c.getUser(), c.getPass());
+        pool.setMaxConnections(c.getPoolSize());
+        pool.setLoginTimeout(c.getPoolTimeout());
+        log.info("数据库连接: {}, 连接池上限: {}", c.getJdbcUrl(), c.getPoolSize());
+        return new DbPool(pool, metrics);
+    }
 
-        var ds = JdbcConnectionPool.create(c.getJdbcUrl(), c.getUser(), c.getPass());
+    @Provides
+    @Singleton
+    public StupidQL initStupidQL(DataSource ds) {
         var stupidQL = StupidQL.init(ds).addInterceptor(new StupidLogger());
         stupidQL.add("runscript from 'classpath:schema.sql'").update();
         return stupidQL;
     }
 
+    /**
+     * 按Java 17编译, 虚拟线程执行器(JDK21+)只能反射取得, 不支持时返回null.
+     */
+    static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 开启servlet异步后把后续处理交给虚拟线程, 服务器线程立即归还;
+     * 容器或servlet不支持异步时原地执行.
+     */
+    static void dispatch(ExecutorService executor, HttpExchange c, Runnable next) {
+        var req = c.request();
+        if (!req.isAsyncSupported() || req.isAsyncStarted()) {
+            next.run();
+            return;
+        }
+        var async = req.startAsync();
+        async.setTimeout(0);
+        executor.execute(() -> {
+            try {
+                next.run();
+            } catch (Exception e) {
+                log.error("error: {}", e.getMessage(), e);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    /**
+     * 按路由(servlet path的第一段)和状态码记录请求耗时.
+     */
+    private static void timeRoute(Metrics metrics, HttpExchange c, Runnable next) {
+        var start = System.nanoTime();
+        try {
+            next.run();
+        } finally {
+            var route = StrUtil.blankToDefault(StrUtil.removePrefix(c.request().getServletPath(), "/"), "index");
+            var status = String.valueOf(c.response().getStatus());
+            metrics.histogram("onelog_http_request_seconds", "请求耗时", "route", route, "status", status).since(start);
+        }
+    }
+
     private static void errorHandler(HttpExchange exchange, Runnable next) {
         try {
             next.run();
@@ -0,0 +1,132 @@
+package onelog;
+
+import com.google.inject.Singleton;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 进程内指标: 计数器、固定分桶的延迟直方图和取值回调, 按Prometheus文本格式输出.
+ * 记录只是LongAdder累加, 分位数交给Prometheus按分桶计算.
+ */
+@Singleton
+public class Metrics {
+    private static final double[] BOUNDS = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    private static final String[] LE = Arrays.stream(BOUNDS).mapToObj(b -> BigDecimal.valueOf(b).stripTrailingZeros().toPlainString()).toArray(String[]::new);
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private record Family(String name, String help, String type, Map<String, Object> series) {
+    }
+
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeNanos(long nanos) {
+            var seconds = nanos / 1e9;
+            var i = 0;
+            while (i < BOUNDS.length && seconds > BOUNDS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long since(long startNanos) {
+            var elapsed = System.nanoTime() - startNanos;
+            observeNanos(elapsed);
+            return elapsed;
+        }
+    }
+
+    /**
+     * labels按名称、取值成对给出, 例如 histogram("x_seconds", "...", "route", "page").
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) series(name, help, "histogram", labels, Histogram::new);
+    }
+
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) series(name, help, "counter", labels, LongAdder::new);
+    }
+
+    public void gauge(String name, String help, Supplier<Number> value, String... labels) {
+        var family = families.computeIfAbsent(name, k -> new Family(name, help, "gauge", new ConcurrentSkipListMap<>()));
+        family.series().put(labelString(labels), value);
+    }
+
+    private Object series(String name, String help, String type, String[] labels, Supplier<Object> factory) {
+        var family = families.get(name);
+        if (family == null) {
+            family = families.computeIfAbsent(name, k -> new Family(name, help, type, new ConcurrentSkipListMap<>()));
+        }
+        var key = labelString(labels);
+        var s = family.series().get(key);
+        return s != null ? s : family.series().computeIfAbsent(key, k -> factory.get());
+    }
+
+    private static String labelString(String[] labels) {
+        if (labels.length == 0) return "";
+        var sb = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (!sb.isEmpty()) sb.append(',');
+            sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Prometheus文本格式(0.0.4).
+     */
+    public String scrape() {
+        var sb = new StringBuilder(4096);
+        for (var family : families.values()) {
+            sb.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            sb.append("# TYPE ").append(family.name()).append(' ').append(family.type()).append('\n');
+            family.series().forEach((labels, s) -> {
+                if (s instanceof Histogram h) {
+                    writeHistogram(sb, family.name(), labels, h);
+                } else if (s instanceof LongAdder c) {
+                    line(sb, family.name(), labels, c.sum());
+                } else if (s instanceof Supplier<?> g) {
+                    line(sb, family.name(), labels, ((Number) g.get()).doubleValue());
+                }
+            });
+        }
+        return sb.toString();
+    }
+
+    private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram h) {
+        var prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < h.buckets.length; i++) {
+            cumulative += h.buckets[i].sum();
+            var le = i < LE.length ? LE[i] : "+Inf";
+            line(sb, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+        }
+        line(sb, name + "_sum", labels, h.sumNanos.sum() / 1e9);
+        line(sb, name + "_count", labels, cumulative);
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, Object value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+}
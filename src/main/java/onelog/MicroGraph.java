@@ -1,30 +1,54 @@
 package onelog;
 
 import cn.hutool.core.net.url.UrlQuery;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.http.HttpResponse;
 import cn.hutool.http.HttpUtil;
 import cn.hutool.json.JSONUtil;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import lombok.Data;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
+@Slf4j
 @Singleton
 public class MicroGraph {
-    private static final String TENANT = "consumers";
-    private static final String OAUTH_URL = "https://login.microsoftonline.com/" + TENANT;
     private static final String GRAPH_URL = "https://graph.microsoft.com/";
     private final List<String> SCOPES = List.of("offline_access", "user.read", "notes.read");
-    private AccessToken token;
+    private volatile AccessToken token;
+    private CompletableFuture<AccessToken> refreshing;
+    // 刷新失败后的冷却: 到retryAt之前不再请求, 直接返回上次的错误
+    private int failures;
+    private long retryAt;
+    private Throwable lastFailure;
+    // 首次加载token要查库, 请求可能在虚拟线程上, 不用synchronized
+    private final ReentrantLock lock = new ReentrantLock();
+    // 不占公共ForkJoinPool; 按需建线程, 上一次卡住的刷新不会挡住下一次
+    private final ExecutorService refresher = Executors.newCachedThreadPool(ResourceStore.daemon("token-refresh"));
 
     @Inject
     private Settings settings;
     @Inject
     private BlogDao blogDao;
+    @Inject
+    private GraphTransport transport;
 
     public String makeAuthUrl() {
-        var base = OAUTH_URL + "/oauth2/v2.0/authorize?";
+        var base = oauthUrl() + "/oauth2/v2.0/authorize?";
         var args = new UrlQuery();
         args.add("client_id", settings.getClientId());
         args.add("response_type", "code");
@@ -36,7 +60,7 @@ public class MicroGraph {
     }
 
     public AccessToken getAccessToken(String code) {
-        var base = OAUTH_URL + "/oauth2/v2.0/token";
+        var base = oauthUrl() + "/oauth2/v2.0/token";
         var args = new UrlQuery();
         args.add("client_id", settings.getClientId());
         args.add("scopes", scopeStr());
@@ -45,9 +69,7 @@ public class MicroGraph {
         args.add("grant_type", "authorization_code");
         args.add("client_secret", settings.getSecretKey());
 
-        var req = HttpUtil.createPost(base);
-        req.body(args.toString());
-        var resp = req.execute();
+        var resp = post(base, args);
         if (resp.getStatus() != 200) {
             throw new RuntimeException("获取Token失败: " + resp.body());
         }
@@ -57,7 +79,7 @@ public class MicroGraph {
     }
 
     public AccessToken refreshAccessToken(String refreshToken) {
-        var base = OAUTH_URL + "/oauth2/v2.0/token";
+        var base = oauthUrl() + "/oauth2/v2.0/token";
         var args = new UrlQuery();
         args.add("client_id", settings.getClientId());
         args.add("scope", scopeStr());
@@ -65,9 +87,7 @@ public class MicroGraph {
         args.add("grant_type", "refresh_token");
         args.add("client_secret", settings.getSecretKey());
 
-        var req = HttpUtil.createPost(base);
-        req.body(args.toString());
-        var resp = req.execute();
+        var resp = post(base, args);
         if (resp.getStatus() != 200) {
             throw new RuntimeException("刷新Token失败: " + resp.body());
         }
@@ -76,41 +96,183 @@ public class MicroGraph {
         return token;
     }
 
+    /**
+     * 连接和读取都按graph配置限时, 令牌端点卡住时不会一直挂着刷新.
+     */
+    private HttpResponse post(String url, UrlQuery args) {
+        var config = settings.getGraph();
+        return HttpUtil.createPost(url)
+          .setConnectionTimeout(config.getConnectTimeout())
+          .setReadTimeout(config.getReadTimeout())
+          .body(args.toString())
+          .execute();
+    }
+
+    /**
+     * 快过期时由一个调用方在后台刷新, 其他调用方继续用旧token; 已过期时所有调用方等待同一次刷新.
+     * 刷新失败后按指数退避冷却, 冷却期内已过期的调用方直接拿到上次的错误.
+     * 刷新在专用线程上执行, 超过requestTimeout按失败处理.
+     */
     public String getNiceAccessToken() {
-        if (token == null) {
-            token = blogDao.kvGet("graphToken", AccessToken.class);
+        var current = loadToken();
+        if (!current.expiresWithin(settings.getGraph().getRefreshAhead())) {
+            return current.getAccessToken();
+        }
+
+        var refresh = refreshOnce(current);
+        if (!current.isExpired()) {
+            return current.getAccessToken();
         }
 
-        if (token == null) {
+        try {
+            return refresh.join().getAccessToken();
+        } catch (CompletionException e) {
+            throw refreshError(e);
+        }
+    }
+
+    public void saveToken(AccessToken accessToken) {
+        lock.lock();
+        try {
+            token = accessToken;
+            retryAt = 0;
+        } finally {
+            lock.unlock();
+        }
+        blogDao.kvSave("graphToken", JSONUtil.toJsonStr(accessToken));
+    }
+
+    private AccessToken loadToken() {
+        var current = token;
+        if (current == null) {
+            lock.lock();
+            try {
+                if (token == null) {
+                    token = blogDao.kvGet("graphToken", AccessToken.class);
+                }
+                current = token;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (current == null) {
             throw new RuntimeException("onenote未授权");
         }
+        return current;
+    }
+
+    private CompletableFuture<AccessToken> refreshOnce(AccessToken stale) {
+        lock.lock();
+        try {
+            if (token != stale) {
+                return CompletableFuture.completedFuture(token);
+            }
+            if (refreshing != null) {
+                return refreshing;
+            }
+            if (System.currentTimeMillis() < retryAt) {
+                return CompletableFuture.failedFuture(lastFailure);
+            }
 
-        if (!token.isExpired()) {
-            return token.getAccessToken();
-        } else {
-            token = refreshAccessToken(token.getRefreshToken());
-            blogDao.kvSave("graphToken", JSONUtil.toJsonStr(token));
-            return token.getAccessToken();
+            var future = CompletableFuture.supplyAsync(() -> {
+                var fresh = refreshAccessToken(stale.getRefreshToken());
+                saveToken(fresh);
+                return fresh;
+            }, refresher).orTimeout(settings.getGraph().getRequestTimeout(), TimeUnit.MILLISECONDS);
+            refreshing = future;
+            future.whenComplete((t, e) -> {
+                lock.lock();
+                try {
+                    if (refreshing == future) refreshing = null;
+                    if (e == null) {
+                        failures = 0;
+                        lastFailure = null;
+                        return;
+                    }
+                    var config = settings.getGraph();
+                    var delay = Math.min(config.getMaxBackoff(), config.getBaseBackoff() << Math.min(failures++, 20));
+                    retryAt = System.currentTimeMillis() + delay;
+                    lastFailure = refreshError(e);
+                    log.error("刷新Token失败, {}ms后重试", delay, lastFailure);
+                } finally {
+                    lock.unlock();
+                }
+            });
+            return future;
+        } finally {
+            lock.unlock();
         }
     }
 
+    private static RuntimeException refreshError(Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof TimeoutException) {
+            return new RuntimeException("刷新Token超时", cause);
+        }
+        return cause instanceof RuntimeException re ? re : new RuntimeException(cause);
+    }
+
     public String graphGet(String path, Map<String, Object> args) {
-        return new String(graphGetBytes(path, args));
+        return new String(graphGetBytes(path, args), StandardCharsets.UTF_8);
     }
 
     public byte[] graphGetBytes(String path, Map<String, Object> args) {
         return graphGetBytes(path, args, getNiceAccessToken());
     }
 
+    @SneakyThrows
     public byte[] graphGetBytes(String path, Map<String, Object> args, String accessToken) {
-        var query = new UrlQuery(args).toString();
-        var req = HttpUtil.createGet(GRAPH_URL + path + "?" + query);
-        req.header("Authorization", "Bearer " + accessToken);
-        var resp = req.execute();
-        if (resp.getStatus() == 200) {
-            return resp.bodyBytes();
+        try (var is = graphGetStream(path, args, accessToken)) {
+            return is.readAllBytes();
+        }
+    }
+
+    public InputStream graphGetStream(String path, Map<String, Object> args) {
+        return graphGetStream(path, args, getNiceAccessToken());
+    }
+
+    public InputStream graphGetStream(String path, Map<String, Object> args, String accessToken) {
+        return transport.get(graphUrl(path, args), accessToken);
+    }
+
+    /**
+     * 同graphGetStream, 另外带回响应的Content-Type.
+     */
+    public GraphTransport.Response graphOpen(String path, Map<String, Object> args) {
+        return transport.open(graphUrl(path, args), getNiceAccessToken());
+    }
+
+    /**
+     * 跟随@odata.nextLink翻页取回全部value. nextLink由服务端生成, 翻页过程中不受排序字段变化影响.
+     */
+    @SneakyThrows
+    public <T> List<T> graphGetAll(String path, Map<String, Object> args, Class<T> type) {
+        var result = new ArrayList<T>();
+        var url = graphUrl(path, args);
+        while (url != null) {
+            if (!url.startsWith(GRAPH_URL)) {
+                throw new RuntimeException("非法的翻页地址: " + url);
+            }
+            String body;
+            try (var is = transport.get(url, getNiceAccessToken())) {
+                body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            var json = JSONUtil.parseObj(body);
+            result.addAll(json.getJSONArray("value").toList(type));
+            url = json.getStr("@odata.nextLink");
         }
-        throw new RuntimeException("请求graph失败: " + resp.body());
+        return result;
+    }
+
+    private static String graphUrl(String path, Map<String, Object> args) {
+        var query = new UrlQuery(args).build(StandardCharsets.UTF_8);
+        var url = GRAPH_URL + StrUtil.removePrefix(path, "/");
+        return StrUtil.isEmpty(query) ? url : url + "?" + query;
+    }
+
+    private String oauthUrl() {
+        return StrUtil.removeSuffix(settings.getGraph().getOauthUrl(), "/");
     }
 
     private String scopeStr() {
@@ -129,7 +291,11 @@ public class MicroGraph {
         Long expireAt;
 
         public boolean isExpired() {
-            return expireAt == null || expireAt < System.currentTimeMillis() / 1000;
+            return expiresWithin(0);
+        }
+
+        public boolean expiresWithin(long seconds) {
+            return expireAt == null || expireAt < System.currentTimeMillis() / 1000 + seconds;
         }
     }
 }
\ No newline at end of file
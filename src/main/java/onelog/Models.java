@@ -1,9 +1,13 @@
 package onelog;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.util.ZipUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import cn.hutool.json.JSONUtil;
 import lombok.Data;
 import org.v2u.stupidql.StupidQL;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
@@ -43,12 +47,82 @@ public class Models {
         private String title;
         private String cover;
         private String summary;
+        @StupidQL.Info(exists = false)
         private String content;
         private Timestamp createdDateTime;
         private Timestamp lastModifiedDateTime;
+        private String contentHash;
 
         @StupidQL.Info(exists = false)
         private String sectionName;
+        @StupidQL.Info(exists = false)
+        private String text;
+
+        public String hash() {
+            var raw = String.join("\u0000", StrUtil.nullToEmpty(sectionId), StrUtil.nullToEmpty(title),
+              StrUtil.nullToEmpty(cover), StrUtil.nullToEmpty(summary), StrUtil.nullToEmpty(content),
+              String.valueOf(createdDateTime));
+            return DigestUtil.sha256Hex(raw);
+        }
+    }
+
+    @Data
+    public static class ChangeSet {
+        private List<String> inserted = new ArrayList<>();
+        private List<String> updated = new ArrayList<>();
+        private List<String> unchanged = new ArrayList<>();
+        private List<String> deleted = new ArrayList<>();
+
+        public List<String> changed() {
+            var all = new ArrayList<>(inserted);
+            all.addAll(updated);
+            return all;
+        }
+
+        public boolean isEmpty() {
+            return inserted.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+        }
+
+        public void addAll(ChangeSet other) {
+            inserted.addAll(other.inserted);
+            updated.addAll(other.updated);
+            unchanged.addAll(other.unchanged);
+            deleted.addAll(other.deleted);
+        }
+    }
+
+    @Data
+    @StupidQL.Info(name = BlogDao.t_page_body)
+    public static class PageBody {
+        public static final String GZIP = "gzip";
+        public static final String NONE = "none";
+
+        private String pageId;
+        private String encoding;
+        private byte[] body;
+
+        public static PageBody of(String pageId, String content) {
+            var it = new PageBody();
+            it.setPageId(pageId);
+            it.setEncoding(GZIP);
+            it.setBody(ZipUtil.gzip(StrUtil.nullToEmpty(content).getBytes(StandardCharsets.UTF_8)));
+            return it;
+        }
+
+        public String decode() {
+            var bytes = GZIP.equals(encoding) ? ZipUtil.unGzip(body) : body;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Data
+    @StupidQL.Info(name = BlogDao.t_resource)
+    public static class Resource {
+        private String id;
+        private Long size;
+        private String contentType;
+        private String checksum;
+        private Timestamp lastAccess;
     }
 
     @Data
@@ -0,0 +1,209 @@
+package onelog;
+
+import cn.hutool.core.util.ZipUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 渲染后HTML的内存缓存, 按字节预算做LRU淘汰, 由SyncTask在内容变化时精确失效.
+ * 每个条目同时保存原文, gzip变体和ETag, 压缩只在入缓存时做一次.
+ * 失效只是标记, 旧内容继续提供直到后台刷新完成(stale-while-revalidate).
+ */
+@Slf4j
+@Singleton
+public class PageCache {
+    public static final String ROUTE_INDEX = "index";
+    public static final String ROUTE_PAGE = "page";
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    private final Settings settings;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder staleHits;
+    private final SingleFlight<Key, Rendered> flights;
+    private final ExecutorService refresher;
+
+    private final LinkedHashMap<Key, Rendered> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<Key> stale = new HashSet<>();
+    private long bytes = 0;
+    private long generation = 0;
+
+    public record Key(String route, String sectionId, long pageNo) {
+        public Key {
+            sectionId = Objects.requireNonNullElse(sectionId, "");
+        }
+    }
+
+    public record Rendered(byte[] body, byte[] gzip, String etag) {
+        public static Rendered of(String html) {
+            return of(html.getBytes(StandardCharsets.UTF_8), true);
+        }
+
+        /**
+         * compressible为false(如图片)时不生成gzip变体.
+         */
+        public static Rendered of(byte[] body, boolean compressible) {
+            var gzip = !compressible || body.length < MIN_GZIP_SIZE ? null : ZipUtil.gzip(body);
+            return new Rendered(body, gzip, DigestUtil.md5Hex(body));
+        }
+
+        public long size() {
+            return body.length + (gzip == null ? 0 : gzip.length);
+        }
+    }
+
+    @Inject
+    public PageCache(Settings settings, Metrics metrics) {
+        this.settings = settings;
+        this.hits = metrics.counter("onelog_page_cache_requests_total", "渲染缓存查询次数", "result", "hit");
+        this.misses = metrics.counter("onelog_page_cache_requests_total", "渲染缓存查询次数", "result", "miss");
+        this.staleHits = metrics.counter("onelog_page_cache_requests_total", "渲染缓存查询次数", "result", "stale");
+        this.flights = new SingleFlight<>(metrics.counter("onelog_singleflight_shared_total", "合并到进行中加载的请求数", "name", "page"));
+        this.refresher = Executors.newFixedThreadPool(settings.getPageRefreshConcurrency(), ResourceStore.daemon("page-refresh"));
+        metrics.gauge("onelog_page_cache_stale", "已失效待刷新的缓存条目", this::staleCount);
+        metrics.gauge("onelog_page_cache_bytes", "渲染缓存占用字节", this::size);
+    }
+
+    public static Key indexKey(String sectionId, long pageNo) {
+        return new Key(ROUTE_INDEX, sectionId, pageNo);
+    }
+
+    public static Key pageKey(String pageId) {
+        return new Key(ROUTE_PAGE, pageId, 0);
+    }
+
+    /**
+     * 新鲜条目直接返回; 已失效的条目先照旧返回, 同时在后台刷新一次(同key只刷一个);
+     * 未缓存时同key的并发请求只渲染一次.
+     */
+    public Rendered get(Key key, Supplier<String> loader) {
+        if (settings.isDebug()) {
+            return Rendered.of(loader.get());
+        }
+
+        Rendered rendered;
+        synchronized (this) {
+            rendered = entries.get(key);
+            if (rendered != null && !stale.contains(key)) {
+                hits.increment();
+                return rendered;
+            }
+        }
+        if (rendered != null) {
+            staleHits.increment();
+            refresh(key, loader);
+            return rendered;
+        }
+        misses.increment();
+        return flights.run(key, () -> load(key, loader));
+    }
+
+    private void refresh(Key key, Supplier<String> loader) {
+        flights.runAsync(key, () -> load(key, loader), refresher).whenComplete((r, e) -> {
+            if (e == null) return;
+            // 内容已不存在或渲染出错: 丢掉旧条目, 下次请求走正常加载并报错
+            log.warn("后台刷新失败: {} {}", key, e.getMessage());
+            synchronized (this) {
+                remove(key);
+            }
+        });
+    }
+
+    /**
+     * 渲染期间发生过失效时结果可能已过期, 入缓存但仍标记为失效, 下次访问再刷新.
+     */
+    private Rendered load(Key key, Supplier<String> loader) {
+        long gen;
+        synchronized (this) {
+            gen = generation;
+        }
+        var rendered = Rendered.of(loader.get());
+        synchronized (this) {
+            put(key, rendered);
+            if (gen != generation) {
+                stale.add(key);
+            }
+        }
+        return rendered;
+    }
+
+    public synchronized void invalidatePage(String pageId) {
+        generation++;
+        markStale(pageKey(pageId));
+    }
+
+    /**
+     * 页面已删除, 不再提供旧内容.
+     */
+    public synchronized void removePage(String pageId) {
+        generation++;
+        remove(pageKey(pageId));
+    }
+
+    public synchronized void invalidateSection(String sectionId) {
+        generation++;
+        for (var key : entries.keySet()) {
+            if (!key.route().equals(ROUTE_INDEX)) continue;
+            if (key.sectionId().isEmpty() || key.sectionId().equals(sectionId)) {
+                stale.add(key);
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        stale.addAll(entries.keySet());
+    }
+
+    private void markStale(Key key) {
+        if (entries.containsKey(key)) {
+            stale.add(key);
+        }
+    }
+
+    public synchronized int staleCount() {
+        return stale.size();
+    }
+
+    public synchronized long size() {
+        return bytes;
+    }
+
+    private void put(Key key, Rendered rendered) {
+        var size = rendered.size();
+        if (size > settings.getPageCacheBytes()) {
+            return;
+        }
+        remove(key);
+        entries.put(key, rendered);
+        bytes += size;
+
+        var it = entries.entrySet().iterator();
+        while (bytes > settings.getPageCacheBytes() && it.hasNext()) {
+            var e = it.next();
+            bytes -= e.getValue().size();
+            stale.remove(e.getKey());
+            it.remove();
+        }
+    }
+
+    private void remove(Key key) {
+        var old = entries.remove(key);
+        stale.remove(key);
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+}
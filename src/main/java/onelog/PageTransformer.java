@@ -0,0 +1,329 @@
+package onelog;
+
+import cn.hutool.core.util.StrUtil;
+import com.google.inject.Singleton;
+import lombok.Data;
+import lombok.SneakyThrows;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 页面正文转换: 用StreamParser边读Graph响应流边解析, body下每个顶层元素一结束就完成规则改写、清理、
+ * 输出html、收集纯文本和封面, 然后从树上摘掉; 不建整棵DOM, 也不再分别调用html()和text()各走一遍树.
+ */
+@Singleton
+public class PageTransformer {
+    private static final String GRAPH_URL = "https://graph.microsoft.com/";
+    private static final int SUMMARY_LENGTH = 800;
+
+    private final List<Rule> rules = new ArrayList<>(List.of(
+      new SanitizeRule(),
+      new ImageRule(),
+      new ObjectRule()
+    ));
+
+    /**
+     * 改写规则: 返回要输出的元素, 返回null表示丢弃整个子树.
+     * 返回新元素时原元素的子节点接在新元素之后输出: Graph把object写成自闭合标签,
+     * html解析器会把后面的兄弟节点都嵌进object里.
+     */
+    public interface Rule {
+        Element apply(Element el, Result result);
+    }
+
+    @Data
+    public static class Result {
+        private String content;
+        private String text;
+        private String cover = "";
+        private List<String> resourceIds = new ArrayList<>();
+    }
+
+    public PageTransformer addRule(Rule rule) {
+        rules.add(rule);
+        return this;
+    }
+
+    /**
+     * 转换并回填page的content/text/summary/cover, 返回其中引用的资源ID.
+     */
+    @SneakyThrows
+    public List<String> transform(Models.Page page, InputStream in) {
+        Result result;
+        try (in) {
+            result = transform(in);
+        }
+        page.setContent(result.getContent());
+        page.setText(result.getText());
+        page.setSummary(StrUtil.sub(result.getText(), 0, SUMMARY_LENGTH));
+        page.setCover(result.getCover());
+        return result.getResourceIds();
+    }
+
+    @SneakyThrows
+    public Result transform(InputStream in) {
+        var out = new Emitter();
+        try (var streamer = new StreamParser(Parser.htmlParser())) {
+            streamer.parse(new InputStreamReader(in, StandardCharsets.UTF_8), "");
+            var it = streamer.iterator();
+            while (it.hasNext()) {
+                out.completed(it.next());
+            }
+            out.finish(streamer.document().body());
+        }
+        var result = out.result;
+        result.setContent(out.html.toString());
+        result.setText(out.text.toString().trim());
+        return result;
+    }
+
+    /**
+     * 已输出开始标签、还没结束的祖先元素. out为规则改写后的元素: 等于node时结束时补结束标签;
+     * 是替换出来的新元素时已整个输出, node的子节点直接跟在后面; 为null表示整棵子树丢弃.
+     */
+    private record Frame(Element node, Element out) {
+    }
+
+    private static boolean isBlock(Element el) {
+        return el.isBlock() || el.nameIs("br");
+    }
+
+    /**
+     * StreamParser在结束标签处吐出元素. 元素完整后连同它前面的文本一起输出并从树上摘掉;
+     * 它的祖先在第一次有子元素完整时先输出开始标签. 树里只留当前路径上未结束的元素和少量文本.
+     */
+    private class Emitter {
+        final Result result = new Result();
+        final StringBuilder html = new StringBuilder();
+        final StringBuilder text = new StringBuilder();
+        final List<Frame> frames = new ArrayList<>();
+
+        void completed(Element el) {
+            var path = new ArrayList<Element>();
+            var parent = el.parent();
+            while (parent != null && !parent.nameIs("body")) {
+                path.add(0, parent);
+                parent = parent.parent();
+            }
+            if (parent == null) {
+                // head里的元素, 以及body、html本身
+                return;
+            }
+
+            var depth = 0;
+            while (depth < frames.size() && depth < path.size() && frames.get(depth).node() == path.get(depth)) {
+                depth++;
+            }
+            while (frames.size() > depth) {
+                close(frames.remove(frames.size() - 1));
+            }
+            if (el.parent() == null) {
+                // 自己就是刚关闭的祖先
+                return;
+            }
+            for (var i = depth; i < path.size(); i++) {
+                open(path.get(i));
+            }
+            drain(el.parent(), el, dropped());
+        }
+
+        void finish(Element body) {
+            while (!frames.isEmpty()) {
+                close(frames.remove(frames.size() - 1));
+            }
+            if (body != null) {
+                drain(body, null, false);
+            }
+        }
+
+        private boolean dropped() {
+            return !frames.isEmpty() && frames.get(frames.size() - 1).out() == null;
+        }
+
+        private void open(Element el) {
+            var previous = el.previousSibling();
+            if (previous != null) {
+                drain(el.parent(), previous, dropped());
+            }
+            if (dropped()) {
+                frames.add(new Frame(el, null));
+                return;
+            }
+            var out = apply(el);
+            if (out != null) {
+                start(out);
+                if (out != el) {
+                    children(out);
+                    end(out);
+                }
+            }
+            frames.add(new Frame(el, out));
+        }
+
+        private void close(Frame frame) {
+            drain(frame.node(), null, frame.out() == null);
+            if (frame.out() == frame.node()) {
+                end(frame.node());
+            }
+            frame.node().remove();
+        }
+
+        /**
+         * 按顺序输出并移除parent开头直到last(含)的子节点, last为null时到最后; skip时只移除不输出.
+         */
+        private void drain(Element parent, Node last, boolean skip) {
+            while (parent.childNodeSize() > 0) {
+                var node = parent.childNode(0);
+                if (!skip) emit(node);
+                node.remove();
+                if (node == last) break;
+            }
+        }
+
+        private void emit(Node node) {
+            if (node instanceof TextNode t) {
+                var whole = t.getWholeText();
+                html.append(Entities.escape(whole));
+                if (!t.isBlank()) {
+                    var normalized = StrUtil.trim(whole.replaceAll("\\s+", " "));
+                    if (Character.isWhitespace(whole.charAt(0))) space();
+                    text.append(normalized);
+                    if (Character.isWhitespace(whole.charAt(whole.length() - 1))) space();
+                }
+                return;
+            }
+            if (!(node instanceof Element el)) {
+                // 注释、doctype等不输出
+                return;
+            }
+
+            var out = apply(el);
+            if (out == null) return;
+            start(out);
+            children(out);
+            end(out);
+            if (out != el) {
+                children(el);
+            }
+        }
+
+        private Element apply(Element el) {
+            for (var rule : rules) {
+                el = rule.apply(el, result);
+                if (el == null) return null;
+            }
+            return el;
+        }
+
+        private void children(Element el) {
+            for (var child : el.childNodes()) {
+                emit(child);
+            }
+        }
+
+        private void start(Element el) {
+            if (isBlock(el)) space();
+            html.append('<').append(el.tagName()).append(el.attributes().html()).append('>');
+        }
+
+        private void end(Element el) {
+            if (!el.tag().isEmpty()) {
+                html.append("</").append(el.tagName()).append('>');
+            }
+            if (isBlock(el)) space();
+        }
+
+        private void space() {
+            if (!text.isEmpty() && text.charAt(text.length() - 1) != ' ') {
+                text.append(' ');
+            }
+        }
+    }
+
+    /**
+     * Graph资源地址形如 .../resources/{id}/$value 或 .../resources/{id}/content, 取倒数第二段.
+     */
+    static String resourceId(String url) {
+        if (url == null || !url.startsWith(GRAPH_URL)) return null;
+        var parts = url.split("/");
+        return parts.length < 2 ? null : parts[parts.length - 2];
+    }
+
+    /**
+     * 去掉脚本类元素、事件属性和javascript:链接.
+     */
+    public static class SanitizeRule implements Rule {
+        private static final Set<String> DROP = Set.of("script", "noscript", "style", "link", "meta", "base", "embed", "form");
+
+        @Override
+        public Element apply(Element el, Result result) {
+            if (DROP.contains(el.normalName())) return null;
+            for (var attr : el.attributes().asList()) {
+                var key = attr.getKey().toLowerCase();
+                var val = attr.getValue().trim().toLowerCase();
+                if (key.startsWith("on") || val.startsWith("javascript:")) {
+                    el.removeAttr(attr.getKey());
+                }
+            }
+            return el;
+        }
+    }
+
+    /**
+     * 图片改走/resources, 加懒加载, 第一张作为封面.
+     */
+    public static class ImageRule implements Rule {
+        @Override
+        public Element apply(Element el, Result result) {
+            if (!el.nameIs("img")) return el;
+            var fileId = resourceId(el.attr("src"));
+            if (fileId == null) return el;
+
+            el.attr("src", "/resources/" + fileId);
+            el.removeAttr("data-fullres-src");
+            el.attr("loading", "lazy");
+            el.attr("decoding", "async");
+            result.getResourceIds().add(fileId);
+            if (result.getCover().isEmpty()) {
+                result.setCover(el.attr("src"));
+            }
+            return el;
+        }
+    }
+
+    /**
+     * 附件(object): 音视频换成播放器, 其他换成下载链接.
+     */
+    public static class ObjectRule implements Rule {
+        @Override
+        public Element apply(Element el, Result result) {
+            if (!el.nameIs("object")) return el;
+            var fileId = resourceId(el.attr("data"));
+            if (fileId == null) return new Element("span");
+
+            result.getResourceIds().add(fileId);
+            var src = "/resources/" + fileId;
+            var type = el.attr("type");
+            var name = StrUtil.blankToDefault(el.attr("data-attachment"), fileId);
+            if (type.startsWith("audio/") || type.startsWith("video/")) {
+                return new Element(type.substring(0, 5))
+                  .attr("src", src)
+                  .attr("controls", true)
+                  .attr("preload", "none")
+                  .attr("title", name);
+            }
+            return new Element("a").attr("href", src).attr("download", name).text(name);
+        }
+    }
+}
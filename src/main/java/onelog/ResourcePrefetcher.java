@@ -0,0 +1,78 @@
+package onelog;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 同步后预热资源缓存: 有界队列去重, 限制并发与每秒下载数, 与/resources共用ResourceStore.
+ */
+@Slf4j
+@Singleton
+public class ResourcePrefetcher {
+    private final ResourceStore resourceStore;
+    private final ThreadPoolExecutor pool;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final long intervalNanos;
+    private long nextStart = System.nanoTime();
+
+    @Inject
+    public ResourcePrefetcher(Settings settings, ResourceStore resourceStore) {
+        this.resourceStore = resourceStore;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, settings.getPrefetchPerSecond());
+        this.pool = new ThreadPoolExecutor(
+          settings.getPrefetchConcurrency(), settings.getPrefetchConcurrency(),
+          0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(settings.getPrefetchQueueSize()),
+          r -> {
+              var t = new Thread(r, "resource-prefetch");
+              t.setDaemon(true);
+              return t;
+          });
+    }
+
+    public void submit(Collection<String> fileIds) {
+        for (var fileId : fileIds) {
+            if (!pending.add(fileId)) continue;
+            try {
+                pool.execute(() -> fetch(fileId));
+            } catch (RejectedExecutionException e) {
+                pending.remove(fileId);
+                log.warn("预取队列已满, 丢弃: {}", fileId);
+            }
+        }
+    }
+
+    private void fetch(String fileId) {
+        try {
+            if (resourceStore.entry(fileId) != null) return;
+            throttle();
+            resourceStore.get(fileId);
+        } catch (Exception e) {
+            log.warn("预取资源失败: {} {}", fileId, e.getMessage());
+        } finally {
+            pending.remove(fileId);
+        }
+    }
+
+    private void throttle() {
+        long wait;
+        synchronized (this) {
+            var now = System.nanoTime();
+            nextStart = Math.max(nextStart, now) + intervalNanos;
+            wait = nextStart - intervalNanos - now;
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
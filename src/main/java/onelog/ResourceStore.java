@@ -0,0 +1,601 @@
+package onelog;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * OneNote资源的本地缓存. 下载直接流式写入临时文件, fsync后原子改名;
+ * 下载过程中的请求可以边下边读已写入的部分.
+ * 内存中维护fileId -> 大小/类型/校验和/最近访问的索引, 持久化在t_resource, 超出cacheMaxBytes时按LRU淘汰.
+ * 资源的gzip副本和衍生图(文件名为"{id}.xxx")算作附属文件, 计入预算并随资源一起淘汰.
+ */
+@Slf4j
+@Singleton
+public class ResourceStore {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String DEFAULT_TYPE = "application/octet-stream";
+    private static final int SNIFF_SIZE = 512;
+
+    private final Settings settings;
+    private final BlogDao blogDao;
+    private final MicroGraph graphApi;
+    private final Metrics metrics;
+
+    private final File dir;
+    private final Map<String, Models.Resource> index = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final Map<String, Long> sidecars = new ConcurrentHashMap<>();
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    private final SingleFlight<String, File> gzipping;
+    private final ExecutorService downloadPool;
+    private final ScheduledExecutorService maintenance;
+    // adopt/evict里有文件IO, 用ReentrantLock而不是synchronized, 虚拟线程等锁时不占住载体线程
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @Inject
+    public ResourceStore(Settings settings, BlogDao blogDao, MicroGraph graphApi, Metrics metrics) {
+        this.settings = settings;
+        this.blogDao = blogDao;
+        this.graphApi = graphApi;
+        this.metrics = metrics;
+        metrics.gauge("onelog_resource_cache_bytes", "资源缓存占用字节", totalBytes::get);
+        metrics.gauge("onelog_resource_cache_files", "资源缓存文件数", index::size);
+        metrics.gauge("onelog_resource_downloads_active", "进行中的资源下载", downloads::size);
+        this.gzipping = new SingleFlight<>(metrics.counter("onelog_singleflight_shared_total", "合并到进行中加载的请求数", "name", "gzip"));
+        this.dir = new File(settings.getCacheDir());
+        downloadPool = Executors.newFixedThreadPool(settings.getDownloadConcurrency(), daemon("resource-download"));
+        maintenance = Executors.newSingleThreadScheduledExecutor(daemon("resource-maintenance"));
+
+        dir.mkdirs();
+        loadIndex();
+        maintenance.execute(this::adoptUnindexed);
+        maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    public File file(String fileId) {
+        return new File(dir, fileId);
+    }
+
+    /**
+     * Graph资源id不含'.', 带'.'的是本地的附属文件或临时文件, 不能当作资源.
+     */
+    public static boolean isValidId(String fileId) {
+        return fileId != null && !fileId.isEmpty() && fileId.indexOf('.') < 0 && fileId.indexOf('/') < 0 && fileId.indexOf('\\') < 0;
+    }
+
+    /**
+     * 返回已缓存资源的索引项并记录访问时间, 未缓存时返回null.
+     */
+    public Models.Resource entry(String fileId) {
+        var entry = index.get(fileId);
+        if (entry == null && isValidId(fileId) && !downloads.containsKey(fileId) && file(fileId).isFile()) {
+            entry = adopt(fileId);
+        }
+        if (entry != null) {
+            entry.setLastAccess(new Timestamp(System.currentTimeMillis()));
+            dirty.add(fileId);
+        }
+        return entry;
+    }
+
+    /**
+     * 文件已缓存时返回null, 否则返回正在进行(或刚发起)的下载.
+     */
+    @SneakyThrows
+    public Download download(String fileId) {
+        if (entry(fileId) != null) {
+            return null;
+        }
+        var running = downloads.get(fileId);
+        if (running != null) {
+            return running;
+        }
+        // 临时文件先建好再发布, 并发请求拿到的Download总能打开边下边读的流
+        var fresh = new Download(file(fileId), new File(dir, fileId + ".tmp-" + System.nanoTime()), waitTimeout());
+        fresh.tmp.createNewFile();
+        running = downloads.putIfAbsent(fileId, fresh);
+        if (running != null || index.containsKey(fileId)) {
+            downloads.remove(fileId, fresh);
+            fresh.tmp.delete();
+            return running;
+        }
+        downloadPool.execute(() -> run(fileId, fresh));
+        return fresh;
+    }
+
+    /**
+     * 等待方的空闲上限: 下载线程的读超时先触发并让下载失败, 这里只是兜底.
+     */
+    private long waitTimeout() {
+        return settings.getGraph().getReadTimeout() * 2L;
+    }
+
+    /**
+     * 阻塞直到文件就绪.
+     */
+    @SneakyThrows
+    public File get(String fileId) {
+        var d = download(fileId);
+        if (d != null) {
+            d.await();
+        }
+        return file(fileId);
+    }
+
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.endsWith("xml") || contentType.endsWith("json");
+    }
+
+    /**
+     * 可压缩资源的gzip副本, 首次请求时生成一次, 并发请求共用同一次压缩.
+     */
+    public File gzipVariant(String fileId) throws IOException {
+        var gz = new File(dir, fileId + ".gz");
+        if (gz.exists()) {
+            return gz;
+        }
+        return gzipping.run(fileId, () -> gzip(fileId, gz));
+    }
+
+    @SneakyThrows
+    private File gzip(String fileId, File gz) {
+        if (gz.exists()) {
+            return gz;
+        }
+        var tmp = new File(dir, gz.getName() + ".tmp-" + System.currentTimeMillis());
+        try (var out = new GZIPOutputStream(new FileOutputStream(tmp))) {
+            Files.copy(file(fileId).toPath(), out);
+        }
+        Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        sidecarAdded(fileId, gz);
+        return gz;
+    }
+
+    /**
+     * 新生成的附属文件计入缓存占用; 资源已被淘汰时不再计数.
+     */
+    public void sidecarAdded(String fileId, File file) {
+        if (!index.containsKey(fileId)) return;
+        sidecars.merge(fileId, file.length(), Long::sum);
+        totalBytes.addAndGet(file.length());
+        maintenance.execute(this::evict);
+    }
+
+    private void run(String fileId, Download d) {
+        try {
+            log.info("下载文件: " + d.dest);
+            var path = "/v1.0/me/onenote/resources/" + fileId + "/$value";
+            var md5 = MessageDigest.getInstance("MD5");
+            var resp = graphApi.graphOpen(path, Map.of());
+            d.contentType = resp.contentType();
+            try (var in = resp.body();
+                 var ch = FileChannel.open(d.tmp.toPath(), StandardOpenOption.WRITE)) {
+                var buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    md5.update(buf, 0, n);
+                    var bb = ByteBuffer.wrap(buf, 0, n);
+                    while (bb.hasRemaining()) {
+                        ch.write(bb);
+                    }
+                    d.progress(n);
+                }
+                ch.force(true);
+            }
+
+            var entry = new Models.Resource();
+            entry.setId(fileId);
+            entry.setSize(d.tmp.length());
+            entry.setContentType(contentType(resp.contentType(), d.tmp));
+            entry.setChecksum(HexUtil.encodeHexStr(md5.digest()));
+            entry.setLastAccess(new Timestamp(System.currentTimeMillis()));
+
+            d.complete(() -> index(entry));
+            metrics.histogram("onelog_resource_download_seconds", "资源下载完整耗时").since(d.startNanos);
+            maintenance.execute(this::evict);
+        } catch (Throwable e) {
+            log.error("下载文件失败: {}", fileId, e);
+            d.fail(e);
+        } finally {
+            downloads.remove(fileId, d);
+        }
+    }
+
+    private void index(Models.Resource entry) {
+        var old = index.put(entry.getId(), entry);
+        totalBytes.addAndGet(entry.getSize() - (old == null ? 0 : old.getSize()));
+        dirty.add(entry.getId());
+    }
+
+    private Models.Resource adopt(String fileId) {
+        lock.lock();
+        try {
+            var entry = index.get(fileId);
+            if (entry != null) {
+                return entry;
+            }
+            var file = file(fileId);
+            entry = new Models.Resource();
+            entry.setId(fileId);
+            entry.setSize(file.length());
+            entry.setContentType(sniff(file));
+            entry.setChecksum(DigestUtil.md5Hex(file));
+            entry.setLastAccess(new Timestamp(file.lastModified()));
+            index(entry);
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void loadIndex() {
+        var names = new HashSet<String>();
+        var attached = new ArrayList<File>();
+        for (var f : listFiles()) {
+            var name = f.getName();
+            if (name.contains(".tmp-")) {
+                log.info("清理残留临时文件: {}", name);
+                f.delete();
+            } else if (name.contains(".")) {
+                attached.add(f);
+            } else {
+                names.add(name);
+            }
+        }
+
+        for (var entry : blogDao.resources()) {
+            if (names.contains(entry.getId())) {
+                // 旧版本只靠URLConnection识别, 很多类型记成了octet-stream
+                if (DEFAULT_TYPE.equals(entry.getContentType())) {
+                    entry.setContentType(sniff(file(entry.getId())));
+                    dirty.add(entry.getId());
+                }
+                index.put(entry.getId(), entry);
+                totalBytes.addAndGet(entry.getSize());
+            } else {
+                blogDao.resourceDelete(entry.getId());
+            }
+        }
+        for (var f : attached) {
+            var parent = f.getName().substring(0, f.getName().indexOf('.'));
+            if (names.contains(parent)) {
+                sidecars.merge(parent, f.length(), Long::sum);
+                totalBytes.addAndGet(f.length());
+            } else {
+                f.delete();
+            }
+        }
+        log.info("资源缓存: {}个文件, {}字节", index.size(), totalBytes.get());
+    }
+
+    private void adoptUnindexed() {
+        for (var f : listFiles()) {
+            var name = f.getName();
+            if (name.contains(".") || index.containsKey(name) || downloads.containsKey(name)) continue;
+            adopt(name);
+        }
+        evict();
+    }
+
+    private void maintain() {
+        try {
+            flush();
+            evict();
+        } catch (Exception e) {
+            log.error("资源缓存维护失败", e);
+        }
+    }
+
+    private void flush() {
+        if (dirty.isEmpty()) return;
+        var batch = dirty.stream().map(index::get).filter(Objects::nonNull).toList();
+        batch.forEach(it -> dirty.remove(it.getId()));
+        blogDao.resourceSaveAll(batch);
+    }
+
+    private void evict() {
+        lock.lock();
+        try {
+            evictLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictLocked() {
+        var budget = settings.getCacheMaxBytes();
+        if (totalBytes.get() <= budget) return;
+
+        var lru = index.values().stream()
+          .sorted(Comparator.comparing(Models.Resource::getLastAccess))
+          .toList();
+        for (var entry : lru) {
+            if (totalBytes.get() <= budget) break;
+            var id = entry.getId();
+            if (downloads.containsKey(id) || !index.remove(id, entry)) continue;
+
+            var attached = sidecars.remove(id);
+            totalBytes.addAndGet(-entry.getSize() - (attached == null ? 0 : attached));
+            dirty.remove(id);
+            var files = dir.listFiles((d, name) -> name.equals(id) || name.startsWith(id + "."));
+            if (files != null) {
+                Arrays.stream(files).forEach(File::delete);
+            }
+            blogDao.resourceDelete(id);
+            metrics.counter("onelog_resource_cache_evictions_total", "资源缓存淘汰次数").increment();
+            log.info("淘汰缓存文件: {}", id);
+        }
+    }
+
+    private File[] listFiles() {
+        var files = dir.listFiles(File::isFile);
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * 优先用Graph响应的Content-Type, 没有或只是octet-stream时按文件头识别.
+     */
+    static String contentType(String header, File file) {
+        if (header != null && !header.isBlank() && !header.startsWith(DEFAULT_TYPE)) {
+            return header.length() > 200 ? header.substring(0, 200) : header;
+        }
+        return sniff(file);
+    }
+
+    static String sniff(File file) {
+        try (var is = new FileInputStream(file)) {
+            return sniff(is.readNBytes(SNIFF_SIZE));
+        } catch (IOException e) {
+            return DEFAULT_TYPE;
+        }
+    }
+
+    /**
+     * 读取可mark的流的开头识别类型, 读完复位.
+     */
+    public static String sniff(BufferedInputStream is) throws IOException {
+        is.mark(SNIFF_SIZE);
+        var head = is.readNBytes(SNIFF_SIZE);
+        is.reset();
+        return sniff(head);
+    }
+
+    /**
+     * 按文件头识别: URLConnection只认得图片和xml/html, PDF、音视频、WebP、BMP、SVG要自己判断.
+     */
+    static String sniff(byte[] head) {
+        if (startsWith(head, 0, "%PDF-")) return "application/pdf";
+        if (startsWith(head, 0, "ID3") || (head.length > 1 && (head[0] & 0xff) == 0xff && (head[1] & 0xe0) == 0xe0)) return "audio/mpeg";
+        if (startsWith(head, 4, "ftyp")) return startsWith(head, 8, "M4A") ? "audio/mp4" : "video/mp4";
+        if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "WEBP")) return "image/webp";
+        if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "WAVE")) return "audio/wav";
+        if (startsWith(head, 0, "OggS")) return "audio/ogg";
+        if (startsWith(head, 0, "fLaC")) return "audio/flac";
+        if (startsWith(head, 0, "BM")) return "image/bmp";
+        try {
+            var type = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(head));
+            var text = new String(head, StandardCharsets.ISO_8859_1);
+            if ((type == null || type.endsWith("/xml")) && text.contains("<svg")) return "image/svg+xml";
+            return type == null ? DEFAULT_TYPE : type;
+        } catch (IOException e) {
+            return DEFAULT_TYPE;
+        }
+    }
+
+    private static boolean startsWith(byte[] head, int offset, String magic) {
+        if (head.length < offset + magic.length()) return false;
+        for (int i = 0; i < magic.length(); i++) {
+            if (head[offset + i] != (byte) magic.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    static ThreadFactory daemon(String name) {
+        return r -> {
+            var t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * 等待用ReentrantLock/Condition: synchronized里wait()在JDK21-23上会把虚拟线程钉在载体线程上.
+     */
+    public static class Download {
+        @Getter
+        private final File dest;
+        private final File tmp;
+        private final long startNanos = System.nanoTime();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final long idleNanos;
+        @Getter
+        private volatile String contentType;
+        private long written = 0;
+        private boolean done = false;
+        private Throwable error;
+
+        Download(File dest, File tmp, long idleMillis) {
+            this.dest = dest;
+            this.tmp = tmp;
+            this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        }
+
+        void progress(long n) {
+            lock.lock();
+            try {
+                written += n;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void complete(Runnable onMoved) throws IOException {
+            lock.lock();
+            try {
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                onMoved.run();
+                done = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void fail(Throwable e) {
+            lock.lock();
+            try {
+                error = e;
+                tmp.delete();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isDone() {
+            lock.lock();
+            try {
+                return done;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void await() throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                while (!done) {
+                    waitProgress();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 等待写入位置超过pos, 返回当前已写入的字节数; 下载已结束且没有更多数据时返回-1.
+         */
+        long awaitBeyond(long pos) throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                while (written <= pos && !done) {
+                    waitProgress();
+                }
+                return written <= pos ? -1 : written;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 等到有新数据、结束或失败; 超过idleNanos没有任何进展时放弃等待.
+         */
+        private void waitProgress() throws IOException, InterruptedException {
+            check();
+            var before = written;
+            var remaining = idleNanos;
+            while (written == before && !done && error == null) {
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("等待下载超时: " + dest.getName());
+                }
+                remaining = changed.awaitNanos(remaining);
+            }
+            check();
+        }
+
+        private void check() throws IOException {
+            if (error != null) {
+                throw new IOException("下载失败: " + dest.getName(), error);
+            }
+        }
+
+        /**
+         * 边下边读: 读取已写入临时文件的部分, 追上写入进度时等待.
+         */
+        public InputStream openStream() throws IOException {
+            RandomAccessFile raf;
+            lock.lock();
+            try {
+                check();
+                if (done) {
+                    return new FileInputStream(dest);
+                }
+                // 改名不影响已打开的文件描述符
+                raf = new RandomAccessFile(tmp, "r");
+            } finally {
+                lock.unlock();
+            }
+            return new InputStream() {
+                private long pos = 0;
+
+                @Override
+                public int read() throws IOException {
+                    var b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                @SneakyThrows(InterruptedException.class)
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) return 0;
+                    var available = awaitBeyond(pos);
+                    if (available < 0) return -1;
+                    raf.seek(pos);
+                    var n = raf.read(b, off, (int) Math.min(len, available - pos));
+                    if (n > 0) pos += n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    raf.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package onelog;
+
+import cn.hutool.core.util.EscapeUtil;
+import cn.hutool.core.util.ZipUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.Jsoup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 页面全文检索: 内存倒排索引 + BM25排序.
+ * 英文数字按词切分, 中日韩文字按二元组切分, 建索引时另存单字以便单字查询; 正文以gzip形式留在内存里只用于生成摘要.
+ * 页面更新时分配新的文档号并把旧文档号标记删除, 删除过多时整体重建.
+ */
+@Slf4j
+@Singleton
+public class SearchIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int TITLE_BOOST = 3;
+    private static final int SNIPPET_RADIUS = 60;
+
+    @Inject
+    BlogDao blogDao;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private State state = new State();
+    // 重建期间被update/remove改过的页面, 换入新索引前以现有索引里的版本为准
+    private Set<String> touched;
+
+    private record Doc(String pageId, String title, byte[] text, int length) {
+    }
+
+    private static class Postings {
+        int[] docs = new int[4];
+        int[] tfs = new int[4];
+        int size = 0;
+
+        void add(int doc, int tf) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            docs[size] = doc;
+            tfs[size] = tf;
+            size++;
+        }
+    }
+
+    /**
+     * 一份完整的索引. 现用的一份由lock保护, 重建时在锁外另建一份再整体换入.
+     */
+    private static class State {
+        final Map<String, Postings> postings = new HashMap<>();
+        final Map<String, Integer> docNos = new HashMap<>();
+        final List<Doc> docs = new ArrayList<>();
+        final BitSet deleted = new BitSet();
+        long totalLength = 0;
+
+        void put(Doc doc, Map<String, Integer> freqs) {
+            remove(doc.pageId());
+            var docNo = docs.size();
+            docs.add(doc);
+            docNos.put(doc.pageId(), docNo);
+            totalLength += doc.length();
+            freqs.forEach((term, tf) -> postings.computeIfAbsent(term, k -> new Postings()).add(docNo, tf));
+            if (deleted.cardinality() > docNos.size()) {
+                compact();
+            }
+        }
+
+        void remove(String pageId) {
+            var old = docNos.remove(pageId);
+            if (old != null) {
+                deleted.set(old);
+                totalLength -= docs.get(old).length();
+            }
+        }
+
+        Doc get(String pageId) {
+            var docNo = docNos.get(pageId);
+            return docNo == null ? null : docs.get(docNo);
+        }
+
+        private void compact() {
+            var live = new ArrayList<Doc>();
+            for (var docNo : docNos.values()) {
+                live.add(docs.get(docNo));
+            }
+            postings.clear();
+            docNos.clear();
+            docs.clear();
+            deleted.clear();
+            totalLength = 0;
+            for (var doc : live) {
+                put(doc, freqs(doc.title(), unpack(doc.text())));
+            }
+        }
+    }
+
+    @Data
+    public static class Hit {
+        private String pageId;
+        private String title;
+        private String snippet;
+        private double score;
+    }
+
+    /**
+     * 从数据库全量建索引. 新索引在锁外建好后整体换入, 期间同步写入的页面以同步的结果为准,
+     * 不会被重建读到的旧正文覆盖.
+     */
+    public void rebuild() {
+        var start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            touched = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        var fresh = new State();
+        var built = false;
+        try {
+            blogDao.pageTexts(page -> {
+                var text = Jsoup.parse(page.getContent()).text();
+                var freqs = freqs(page.getTitle(), text);
+                fresh.put(doc(page.getId(), page.getTitle(), text, freqs), freqs);
+            });
+            built = true;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (built) {
+                    for (var pageId : touched) {
+                        var doc = state.get(pageId);
+                        if (doc == null) {
+                            fresh.remove(pageId);
+                        } else {
+                            fresh.put(doc, freqs(doc.title(), unpack(doc.text())));
+                        }
+                    }
+                    state = fresh;
+                }
+                touched = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        log.info("全文索引完成: {}篇, {}ms", fresh.docNos.size(), System.currentTimeMillis() - start);
+    }
+
+    public void update(String pageId, String title, String text) {
+        var freqs = freqs(title, text);
+        var doc = doc(pageId, title, text, freqs);
+        lock.writeLock().lock();
+        try {
+            state.put(doc, freqs);
+            if (touched != null) touched.add(pageId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String pageId) {
+        lock.writeLock().lock();
+        try {
+            state.remove(pageId);
+            if (touched != null) touched.add(pageId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static Doc doc(String pageId, String title, String text, Map<String, Integer> freqs) {
+        var length = freqs.values().stream().mapToInt(Integer::intValue).sum();
+        return new Doc(pageId, title, ZipUtil.gzip(text.getBytes(StandardCharsets.UTF_8)), length);
+    }
+
+    private static Map<String, Integer> freqs(String title, String text) {
+        var freqs = new HashMap<String, Integer>();
+        indexTerms(title).forEach(t -> freqs.merge(t, TITLE_BOOST, Integer::sum));
+        indexTerms(text).forEach(t -> freqs.merge(t, 1, Integer::sum));
+        return freqs;
+    }
+
+    private static String unpack(byte[] text) {
+        return new String(ZipUtil.unGzip(text), StandardCharsets.UTF_8);
+    }
+
+    public List<Hit> search(String query, int limit) {
+        var terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        var top = new PriorityQueue<Map.Entry<Integer, Double>>(Map.Entry.comparingByValue());
+        List<Doc> picked = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            var index = state;
+            var n = index.docNos.size();
+            if (n == 0) return List.of();
+            var avgdl = (double) index.totalLength / n;
+
+            var acc = new HashMap<Integer, Double>();
+            for (var term : terms) {
+                var p = index.postings.get(term);
+                if (p == null) continue;
+                var df = 0;
+                for (int i = 0; i < p.size; i++) {
+                    if (!index.deleted.get(p.docs[i])) df++;
+                }
+                var idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+                for (int i = 0; i < p.size; i++) {
+                    var doc = p.docs[i];
+                    if (index.deleted.get(doc)) continue;
+                    var tf = p.tfs[i];
+                    var dl = index.docs.get(doc).length();
+                    var score = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * dl / avgdl));
+                    acc.merge(doc, score, Double::sum);
+                }
+            }
+
+            for (var e : acc.entrySet()) {
+                top.offer(e);
+                if (top.size() > limit) top.poll();
+            }
+            var ranked = new ArrayList<>(top);
+            ranked.sort(Map.Entry.<Integer, Double>comparingByValue().reversed());
+            for (var e : ranked) {
+                picked.add(index.docs.get(e.getKey()));
+                scores.add(e.getValue());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        var hits = new ArrayList<Hit>();
+        for (int i = 0; i < picked.size(); i++) {
+            var doc = picked.get(i);
+            var hit = new Hit();
+            hit.setPageId(doc.pageId());
+            hit.setTitle(doc.title());
+            hit.setScore(scores.get(i));
+            hit.setSnippet(snippet(unpack(doc.text()), query));
+            hits.add(hit);
+        }
+        return hits;
+    }
+
+    static boolean isCjk(int c) {
+        var block = Character.UnicodeScript.of(c);
+        return block == Character.UnicodeScript.HAN || block == Character.UnicodeScript.HIRAGANA
+          || block == Character.UnicodeScript.KATAKANA || block == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * 查询用: 英文数字连续段为一个词, 中日韩连续段切成二元组(单字段保留单字).
+     */
+    static List<String> tokenize(String text) {
+        return tokenize(text, false);
+    }
+
+    /**
+     * 建索引用: 在tokenize基础上, 多字段的每个字也单独作为一项, 否则单字查询永远命中不了.
+     */
+    static List<String> indexTerms(String text) {
+        return tokenize(text, true);
+    }
+
+    private static List<String> tokenize(String text, boolean unigrams) {
+        var terms = new ArrayList<String>();
+        if (text == null) return terms;
+        var s = lowerCase(text);
+        var i = 0;
+        var len = s.length();
+        while (i < len) {
+            var c = s.charAt(i);
+            if (Character.isLetterOrDigit(c) && !isCjk(c)) {
+                var j = i;
+                while (j < len && Character.isLetterOrDigit(s.charAt(j)) && !isCjk(s.charAt(j))) j++;
+                terms.add(s.substring(i, j));
+                i = j;
+            } else if (isCjk(c)) {
+                var j = i;
+                while (j < len && isCjk(s.charAt(j))) j++;
+                if (j - i == 1) {
+                    terms.add(s.substring(i, j));
+                } else {
+                    for (int k = i; k + 1 < j; k++) {
+                        terms.add(s.substring(k, k + 2));
+                    }
+                    if (unigrams) {
+                        for (int k = i; k < j; k++) {
+                            terms.add(s.substring(k, k + 1));
+                        }
+                    }
+                }
+                i = j;
+            } else {
+                i++;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * 按码点转小写, 与默认Locale无关, 且结果与原文逐位对齐: String.toLowerCase会把İ变成两个char,
+     * 命中位置就对不上原文了. 大小写映射改变char数的码点保持原样.
+     */
+    static String lowerCase(String text) {
+        var sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ) {
+            var cp = text.codePointAt(i);
+            var lower = Character.toLowerCase(cp);
+            sb.appendCodePoint(Character.charCount(lower) == Character.charCount(cp) ? lower : cp);
+            i += Character.charCount(cp);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 取第一个命中附近的片段, 转义后用mark标出所有命中.
+     */
+    static String snippet(String text, String query) {
+        var lower = lowerCase(text);
+        var needles = highlightTerms(query);
+        var first = -1;
+        for (var t : needles) {
+            var at = lower.indexOf(t);
+            if (at >= 0 && (first < 0 || at < first)) first = at;
+        }
+        var from = Math.max(0, first - SNIPPET_RADIUS);
+        var to = Math.min(text.length(), Math.max(first, 0) + SNIPPET_RADIUS * 2);
+
+        var sb = new StringBuilder();
+        if (from > 0) sb.append("…");
+        var i = from;
+        while (i < to) {
+            String match = null;
+            for (var t : needles) {
+                if (lower.startsWith(t, i) && (match == null || t.length() > match.length())) match = t;
+            }
+            if (match == null) {
+                sb.append(EscapeUtil.escapeHtml4(String.valueOf(text.charAt(i))));
+                i++;
+            } else {
+                var end = Math.min(to, i + match.length());
+                sb.append("<mark>").append(EscapeUtil.escapeHtml4(text.substring(i, end))).append("</mark>");
+                i = end;
+            }
+        }
+        if (to < text.length()) sb.append("…");
+        return sb.toString();
+    }
+
+    private static Set<String> highlightTerms(String query) {
+        var terms = new LinkedHashSet<String>();
+        for (var part : lowerCase(query).split("[\\s\\p{Punct}]+")) {
+            if (!part.isEmpty()) terms.add(part);
+        }
+        terms.addAll(tokenize(query));
+        return terms;
+    }
+}
@@ -2,6 +2,7 @@ package onelog;
 
 import lombok.Data;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,31 +10,87 @@ import java.util.List;
 public class Settings {
     private boolean debug = false;
     private int port = 8084;
+    //JDK21+: 请求交给虚拟线程处理, 慢的冷资源下载不再占住服务器线程池
+    private boolean virtualThreads = false;
     private H2 h2;
+    private Graph graph = new Graph();
     private String clientId;
     private String secretKey;
     private String callbackUrl;
+    //站点对外地址, 用于feed.xml/sitemap.xml里的绝对链接; 为空时取callbackUrl的协议和主机
+    private String siteUrl = "";
     private String cronExpr = "0 * * * *";
+    private int syncConcurrency = 4;
+    private int syncBatchSize = 20;
 
     //basics
     private String title;
     private String email;
     private String notebookId;
     private int pageSize = 5;
+    private int searchLimit = 20;
+    private int feedSize = 20;
+    private String metricsToken = "";
+    //非空时每次同步后把站点增量导出到该目录
+    private String exportDir = "";
     private List<String> ignoreSections = new ArrayList<>();
 
+    //cache
+    private long pageCacheBytes = 32L * 1024 * 1024;
+    //失效页面的后台重渲染并发数
+    private int pageRefreshConcurrency = 2;
+    private String cacheDir = "./cache";
+    private long cacheMaxBytes = 2L * 1024 * 1024 * 1024;
+    private long mappedFileMaxBytes = 8L * 1024 * 1024;
+    private long mappedCacheBytes = 256L * 1024 * 1024;
+    private int downloadConcurrency = 4;
+    private int prefetchConcurrency = 2;
+    private int prefetchQueueSize = 1000;
+    private int prefetchPerSecond = 5;
+    private List<Integer> imageWidths = new ArrayList<>(List.of(400, 1024));
+
+    @Data
+    public static class Graph {
+        //OAuth端点(含租户), 默认个人账户; 测试时可指向本地假服务
+        private String oauthUrl = "https://login.microsoftonline.com/consumers";
+        private int connectTimeout = 10_000;
+        private int requestTimeout = 120_000;
+        //响应正文连续这么久没有数据时断开, requestTimeout只管到响应头为止
+        private int readTimeout = 30_000;
+        private int maxRetries = 5;
+        private long baseBackoff = 500;
+        private long maxBackoff = 30_000;
+        private long refreshAhead = 300;
+    }
+
     @Data
     public static class H2 {
         private String user;
         private String pass;
-        private int poolSize = 3;
+        private int poolSize = 10;
+        private int poolTimeout = 30;
+
+        //embedded: 进程内直连数据库文件; tcp: 经本机TCP服务访问
+        private String mode = "embedded";
+        private boolean server = false;
+        private int cacheSize = 64 * 1024;
+        private boolean lazyQuery = true;
 
         private String webPort = "7002";
         private String tcpPort = "7001";
         private String baseDir = "./data";
         private String externalNames = "";
 
+        public boolean isEmbedded() {
+            return "embedded".equalsIgnoreCase(mode);
+        }
+
         public String getJdbcUrl() {
+            if (isEmbedded()) {
+                var file = Paths.get(baseDir, "onelog").toAbsolutePath();
+                return String.format("jdbc:h2:file:%s;CACHE_SIZE=%d;LAZY_QUERY_EXECUTION=%d",
+                  file, cacheSize, lazyQuery ? 1 : 0);
+            }
             return String.format("jdbc:h2:tcp://localhost:%s/onelog", tcpPort);
         }
     }
@@ -0,0 +1,92 @@
+package onelog;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 相同key的并发加载只执行一次, 其余调用等同一个结果(成功或异常).
+ * 加载结束后立即移除, 之后的调用重新加载, 结果是否缓存由调用方决定.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder shared;
+
+    public SingleFlight() {
+        this(new LongAdder());
+    }
+
+    /**
+     * shared: 合并到进行中加载的调用次数.
+     */
+    public SingleFlight(LongAdder shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * 在调用线程里加载, 已有同key加载时等它的结果.
+     */
+    public V run(K key, Supplier<V> loader) {
+        var call = new CompletableFuture<V>();
+        var running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            shared.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+        try {
+            var value = loader.get();
+            call.complete(value);
+            return value;
+        } catch (Throwable e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 在executor里加载, 已有同key加载时直接返回它.
+     */
+    public CompletableFuture<V> runAsync(K key, Supplier<V> loader, Executor executor) {
+        var call = new CompletableFuture<V>();
+        var running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            shared.increment();
+            return running;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    call.complete(loader.get());
+                } catch (Throwable e) {
+                    call.completeExceptionally(e);
+                } finally {
+                    calls.remove(key, call);
+                }
+            });
+        } catch (RuntimeException e) {
+            calls.remove(key, call);
+            call.completeExceptionally(e);
+        }
+        return call;
+    }
+
+    public int inFlight() {
+        return calls.size();
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException re) return re;
+        if (e instanceof Error err) throw err;
+        return new CompletionException(e);
+    }
+}
@@ -0,0 +1,98 @@
+package onelog;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.pebbletemplates.pebble.PebbleEngine;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 每个页面都要用的站点数据(分区、渲染好的导航), 整体不可变, 同步后重建并原子替换;
+ * 请求只读当前引用, 不再为画导航查库.
+ */
+@Slf4j
+@Singleton
+public class SiteSnapshot {
+    private final Settings settings;
+    private final BlogDao blogDao;
+    private final PebbleEngine pebbleEngine;
+    private final PageCache pageCache;
+
+    private final AtomicReference<Site> current = new AtomicReference<>();
+
+    /**
+     * fingerprint: 导航内容的摘要, 变化时所有页面都要重新渲染.
+     */
+    public record Site(List<Section> sections, Set<String> sectionIds, String nav, String fingerprint) {
+        public boolean hasSection(String sectionId) {
+            return sectionIds.contains(sectionId);
+        }
+    }
+
+    /**
+     * 导航只用到id和名称, 从可变的Models.Section拷贝出来.
+     */
+    public record Section(String id, String displayName) {
+    }
+
+    @Inject
+    public SiteSnapshot(Settings settings, BlogDao blogDao, PebbleEngine pebbleEngine, PageCache pageCache) {
+        this.settings = settings;
+        this.blogDao = blogDao;
+        this.pebbleEngine = pebbleEngine;
+        this.pageCache = pageCache;
+    }
+
+    public Site get() {
+        if (settings.isDebug()) {
+            return build();
+        }
+        var site = current.get();
+        if (site == null) {
+            site = build();
+            if (!current.compareAndSet(null, site)) {
+                site = current.get();
+            }
+        }
+        return site;
+    }
+
+    /**
+     * 由SyncTask在每次同步结束时调用; 导航变化时让渲染缓存里的页面全部失效.
+     */
+    public Site rebuild() {
+        var site = build();
+        var old = current.getAndSet(site);
+        if (old != null && !old.fingerprint().equals(site.fingerprint())) {
+            log.info("导航已变化, 重新渲染全部页面");
+            pageCache.invalidateAll();
+        }
+        return site;
+    }
+
+    @SneakyThrows
+    private Site build() {
+        var sections = new ArrayList<Section>();
+        var ids = new HashSet<String>();
+        var sb = new StringBuilder(StrUtil.nullToEmpty(settings.getTitle()));
+        for (var s : blogDao.sections()) {
+            sections.add(new Section(s.getId(), s.getDisplayName()));
+            ids.add(s.getId());
+            sb.append('\n').append(s.getId()).append('\t').append(s.getDisplayName());
+        }
+
+        var writer = new StringWriter();
+        pebbleEngine.getTemplate("nav.html").evaluate(writer, Map.of("sections", sections));
+        return new Site(List.copyOf(sections), Set.copyOf(ids), writer.toString(), DigestUtil.md5Hex(sb.toString()));
+    }
+}
@@ -0,0 +1,89 @@
+package onelog;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
+import com.google.inject.Singleton;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * classpath里的statics目录: 启动时整体读进内存并预先gzip, /statics/*按ETag和Accept-Encoding输出,
+ * 不再交给容器的静态目录原样发送; 静态导出也从这里取文件.
+ */
+@Slf4j
+@Singleton
+public class StaticAssets {
+    private static final Map<String, String> TYPES = Map.of(
+      "js", "text/javascript; charset=utf-8",
+      "css", "text/css; charset=utf-8",
+      "html", "text/html; charset=utf-8",
+      "svg", "image/svg+xml",
+      "json", "application/json");
+
+    private final Map<String, Asset> assets;
+
+    public record Asset(PageCache.Rendered rendered, String contentType) {
+    }
+
+    public StaticAssets() {
+        var start = System.currentTimeMillis();
+        this.assets = load();
+        log.info("静态文件已加载: {}个, {}ms", assets.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * name为statics下的相对路径, 不存在时返回null.
+     */
+    public Asset get(String name) {
+        return assets.get(name);
+    }
+
+    public Map<String, Asset> all() {
+        return assets;
+    }
+
+    static String contentType(String name) {
+        var type = TYPES.get(FileUtil.extName(name).toLowerCase());
+        if (type == null) type = FileUtil.getMimeType(name);
+        return StrUtil.blankToDefault(type, "application/octet-stream");
+    }
+
+    /**
+     * 打成jar后要经zip文件系统读取.
+     */
+    @SneakyThrows
+    private static Map<String, Asset> load() {
+        var assets = new TreeMap<String, Asset>();
+        var url = StaticAssets.class.getClassLoader().getResource("statics");
+        if (url == null) return Map.of();
+        var uri = url.toURI();
+        if (uri.getScheme().equals("jar")) {
+            try (var fs = FileSystems.newFileSystem(URI.create(uri.toString().split("!")[0]), Map.of())) {
+                walk(fs.getPath("/statics"), assets);
+            }
+        } else {
+            walk(Paths.get(uri), assets);
+        }
+        return Map.copyOf(assets);
+    }
+
+    @SneakyThrows
+    private static void walk(Path root, Map<String, Asset> assets) {
+        try (var files = Files.walk(root)) {
+            for (var p : files.filter(Files::isRegularFile).toList()) {
+                var name = root.relativize(p).toString().replace('\\', '/');
+                var type = contentType(name);
+                var rendered = PageCache.Rendered.of(Files.readAllBytes(p), ResourceStore.isCompressible(type));
+                assets.put(name, new Asset(rendered, type));
+            }
+        }
+    }
+}
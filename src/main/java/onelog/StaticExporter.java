@@ -0,0 +1,227 @@
+package onelog;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 把整站预渲染到目录, 交给nginx/CDN直接提供读服务:
+ * 首页和分区列表 -> /index.html, /p/{n}/index.html, /section/{id}/..., 正文 -> /page/{id}/index.html,
+ * 资源 -> /resources/{id}, 静态文件 -> /statics/, 订阅源 -> /feed.xml, /sitemap.xml; 可压缩的文件旁边放.gz(nginx: gzip_static on; try_files $uri $uri/index.html =404).
+ * 同步后增量导出: 只重渲染变化的正文页, 列表页内容不变时不重写; 分区导航变化时整站重导.
+ */
+@Slf4j
+@Singleton
+public class StaticExporter {
+    private static final Pattern RESOURCE_REF = Pattern.compile("/resources/([^\"'?/<>\\s]+)");
+    private static final String NAV_FILE = ".nav";
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    @Inject
+    Settings settings;
+    @Inject
+    BlogDao blogDao;
+    @Inject
+    BlogController controller;
+    @Inject
+    ResourceStore resourceStore;
+    @Inject
+    FeedService feedService;
+    @Inject
+    SiteSnapshot siteSnapshot;
+    @Inject
+    StaticAssets staticAssets;
+
+    /**
+     * 同步后的钩子, 未配置exportDir时不做事.
+     */
+    public void onSynced(Models.ChangeSet changes) {
+        if (StrUtil.isBlank(settings.getExportDir())) return;
+        var out = new File(settings.getExportDir());
+        if (!navFingerprint().equals(readNav(out))) {
+            exportAll(out);
+        } else if (!changes.isEmpty()) {
+            exportChanges(out, changes);
+        }
+    }
+
+    public synchronized void exportAll(File out) {
+        var start = System.currentTimeMillis();
+        out.mkdirs();
+        copyStatics(out);
+
+        var ids = new HashSet<>(blogDao.pageIds());
+        var written = 0;
+        for (var id : ids) {
+            if (exportPage(out, id)) written++;
+        }
+        removeStale(new File(out, "page"), ids);
+        exportListings(out);
+        removeStale(new File(out, "section"), sectionIds());
+
+        FileUtil.writeUtf8String(navFingerprint(), new File(out, NAV_FILE));
+        log.info("静态导出完成: {}篇, 重写{}篇, {}ms, {}", ids.size(), written, System.currentTimeMillis() - start, out.getAbsolutePath());
+    }
+
+    public synchronized void exportChanges(File out, Models.ChangeSet changes) {
+        var start = System.currentTimeMillis();
+        for (var id : changes.changed()) {
+            exportPage(out, id);
+        }
+        for (var id : changes.getDeleted()) {
+            FileUtil.del(new File(out, "page/" + id));
+        }
+        exportListings(out);
+        log.info("静态增量导出: 变化{}篇, 删除{}篇, {}ms", changes.changed().size(), changes.getDeleted().size(), System.currentTimeMillis() - start);
+    }
+
+    private boolean exportPage(File out, String id) {
+        var page = blogDao.pageGet(id);
+        if (page == null) return false;
+        var html = controller.view("page.html", vars(Map.of("page", page, "pageTitle", page.getTitle()), "/"));
+        copyResources(out, html);
+        return write(new File(out, "page/" + id + "/index.html"), html);
+    }
+
+    /**
+     * 列表页只在内容变化时重写; 页数变少时删掉多出来的页.
+     */
+    private void exportListings(File out) {
+        var sections = new LinkedHashSet<String>();
+        sections.add("");
+        sections.addAll(sectionIds());
+        for (var sectionId : sections) {
+            var base = sectionId.isEmpty() ? "/" : "/section/" + sectionId + "/";
+            var dir = new File(out, base.substring(1));
+            var first = blogDao.pageList(sectionId, 1, settings.getPageSize());
+            var pages = Math.max(1, (int) first.maxPage());
+            for (int i = 1; i <= pages; i++) {
+                var listing = i == 1 ? first : blogDao.pageList(sectionId, i, settings.getPageSize());
+                var html = controller.view("index.html", vars(Map.of("pages", listing), base));
+                write(new File(dir, i == 1 ? "index.html" : "p/" + i + "/index.html"), html);
+            }
+            var numbered = new File(dir, "p").listFiles();
+            if (numbered == null) continue;
+            for (var f : numbered) {
+                var n = StrUtil.isNumeric(f.getName()) ? Integer.parseInt(f.getName()) : 0;
+                if (n > pages) FileUtil.del(f);
+            }
+        }
+        var feeds = feedService.get();
+        write(new File(out, FeedService.ATOM), feeds.atom().body());
+        write(new File(out, FeedService.SITEMAP), feeds.sitemap().body());
+    }
+
+    private static Map<String, Object> vars(Map<String, Object> vars, String pagerBase) {
+        var all = new HashMap<>(vars);
+        all.put("exportMode", true);
+        all.put("pagerBase", pagerBase);
+        return all;
+    }
+
+    /**
+     * 正文引用的资源先确保已缓存(必要时阻塞下载), 再按大小比对复制.
+     */
+    private void copyResources(File out, String html) {
+        var m = RESOURCE_REF.matcher(html);
+        var ids = new LinkedHashSet<String>();
+        while (m.find()) ids.add(m.group(1));
+        for (var id : ids) {
+            try {
+                var src = resourceStore.get(id);
+                var dest = new File(out, "resources/" + id);
+                if (dest.length() == src.length() && dest.lastModified() >= src.lastModified()) continue;
+                FileUtil.mkParentDirs(dest);
+                Files.copy(src.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                var entry = resourceStore.entry(id);
+                if (entry != null && ResourceStore.isCompressible(entry.getContentType())) {
+                    Files.copy(resourceStore.gzipVariant(id).toPath(), new File(out, "resources/" + id + ".gz").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (Exception e) {
+                log.warn("导出资源失败: {} {}", id, e.getMessage());
+            }
+        }
+    }
+
+    private void copyStatics(File out) {
+        staticAssets.all().forEach((name, asset) -> write(new File(out, "statics/" + name), asset.rendered().body()));
+    }
+
+    private boolean write(File file, String html) {
+        return write(file, html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 内容相同则跳过, 否则写临时文件后改名, 并重新生成.gz.
+     */
+    @SneakyThrows
+    private boolean write(File file, byte[] bytes) {
+        if (file.isFile() && file.length() == bytes.length && Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) {
+            return false;
+        }
+        FileUtil.mkParentDirs(file);
+        replace(file, bytes, false);
+        var gz = new File(file.getPath() + ".gz");
+        if (bytes.length >= MIN_GZIP_SIZE && isCompressible(file.getName())) {
+            replace(gz, bytes, true);
+        } else {
+            gz.delete();
+        }
+        return true;
+    }
+
+    private static void replace(File file, byte[] bytes, boolean gzip) throws Exception {
+        var tmp = new File(file.getPath() + ".tmp-" + System.nanoTime());
+        try (var os = gzip ? new GZIPOutputStream(new FileOutputStream(tmp)) : new FileOutputStream(tmp)) {
+            os.write(bytes);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean isCompressible(String name) {
+        return name.endsWith(".html") || name.endsWith(".css") || name.endsWith(".js") || name.endsWith(".xml") || name.endsWith(".svg");
+    }
+
+    private static void removeStale(File dir, Set<String> keep) {
+        var children = dir.listFiles(File::isDirectory);
+        if (children == null) return;
+        for (var child : children) {
+            if (!keep.contains(child.getName())) FileUtil.del(child);
+        }
+    }
+
+    private Set<String> sectionIds() {
+        var ids = new LinkedHashSet<String>();
+        siteSnapshot.get().sections().forEach(s -> ids.add(s.id()));
+        return ids;
+    }
+
+    /**
+     * 导航出现在每个页面里, 分区增删改名后全部页面都要重渲染.
+     */
+    private String navFingerprint() {
+        return siteSnapshot.get().fingerprint();
+    }
+
+    private static String readNav(File out) {
+        var f = new File(out, NAV_FILE);
+        return f.isFile() ? FileUtil.readUtf8String(f).trim() : "";
+    }
+}
@@ -1,121 +1,376 @@
 package onelog;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.cron.task.Task;
-import cn.hutool.json.JSONUtil;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.jsoup.Jsoup;
-import org.v2u.stupidql.StupidQL;
 
-import java.time.ZoneId;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Singleton
 public class SyncTask implements Task {
     private MicroGraph.AccessToken token;
+    private volatile Progress progress = new Progress();
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(r, "sync");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean running = false;
+    private boolean rerun = false;
+    private final List<Consumer<Models.ChangeSet>> listeners = new CopyOnWriteArrayList<>();
 
     @Inject
     Settings settings;
     @Inject
     BlogDao blogDao;
     @Inject
-    StupidQL stupidQL;
-    @Inject
     MicroGraph graphApi;
+    @Inject
+    PageCache pageCache;
+    @Inject
+    ResourcePrefetcher prefetcher;
+    @Inject
+    SearchIndex searchIndex;
+    @Inject
+    PageTransformer transformer;
+    @Inject
+    SiteSnapshot siteSnapshot;
+    @Inject
+    Metrics metrics;
 
+    /**
+     * 定时任务和手动触发共用: 只在后台单线程里跑一个同步, 运行中再次触发时合并为结束后的一次重跑.
+     */
     @Override
     public void execute() {
-        if (StrUtil.isBlank(settings.getNotebookId())) {
-            log.warn("未配置笔记ID");
-            return;
-        }
-        sync(settings.getNotebookId());
+        trigger();
     }
 
-    public void sync(String notebookId) {
-        var sections = syncSections(notebookId);
-        sections.forEach(s -> {
-            syncPages(s.getId());
-        });
+    /**
+     * 每次同步结束(无论是否有变化)后在同步线程上回调.
+     */
+    public void addListener(Consumer<Models.ChangeSet> listener) {
+        listeners.add(listener);
     }
 
-    public void syncPages(String sectionId) {
-        var path = "/v1.0/me/onenote/sections/" + sectionId + "/pages";
+    /**
+     * 返回true表示新开始了一次同步, false表示已合并到正在运行的同步之后.
+     */
+    public synchronized boolean trigger() {
+        if (running) {
+            rerun = true;
+            return false;
+        }
+        running = true;
+        runner.execute(this::runLoop);
+        return true;
+    }
 
-        var systemZoneId = ZoneId.systemDefault();
-        var lastUpdate = blogDao.pageLastUpdate(sectionId);
-        var pageNo = 1;
-        var limit = 20;
+    private void runLoop() {
         while (true) {
-            var args = new HashMap<String, Object>();
-            args.put("$orderby", "lastModifiedDateTime desc");
-            args.put("$top", limit);
-            args.put("$skip", (pageNo - 1) * limit);
-
-            if (lastUpdate != null) {
-                var timeStr = lastUpdate.atZone(systemZoneId).toInstant().toString();
-                args.put("$filter", "lastModifiedDateTime gt " + timeStr);
+            try {
+                if (StrUtil.isBlank(settings.getNotebookId())) {
+                    log.warn("未配置笔记ID");
+                } else {
+                    var changes = sync(settings.getNotebookId());
+                    listeners.forEach(it -> it.accept(changes));
+                }
+            } catch (Exception e) {
+                log.error("同步失败", e);
+            }
+            synchronized (this) {
+                if (!rerun) {
+                    running = false;
+                    return;
+                }
+                rerun = false;
             }
+        }
+    }
 
-            var resp = graphApi.graphGet(path, args);
-            var pages = JSONUtil.toBean(resp, Pages.class);
+    public Models.ChangeSet sync(String notebookId) {
+        var progress = new Progress();
+        this.progress = progress;
+        var changes = new Models.ChangeSet();
+        var pool = Executors.newFixedThreadPool(settings.getSyncConcurrency());
+        var start = System.nanoTime();
+        try {
+            progress.phase = "sections";
+            var sections = syncSections(notebookId, changes);
+            progress.sections.addAndGet(sections.size());
+            phase("sections").since(start);
 
-            pageNo++;
+            progress.phase = "pages";
+            var pagesStart = System.nanoTime();
+            sections.forEach(s -> {
+                changes.addAll(syncPages(s, pool, progress));
+            });
+            phase("pages").since(pagesStart);
+            progress.phase = "done";
+            return changes;
+        } catch (RuntimeException e) {
+            progress.phase = "failed";
+            progress.error(e.getMessage());
+            throw e;
+        } finally {
+            pool.shutdown();
+            siteSnapshot.rebuild();
+            progress.finish();
+            phase("total").since(start);
+            metrics.counter("onelog_sync_runs_total", "同步次数", "result", progress.phase).increment();
+            count("saved", progress.saved.get());
+            count("unchanged", progress.unchanged.get());
+            count("deleted", progress.deleted.get());
+            count("failed", progress.failed.get());
+            log.info("同步结束: {}", progress);
+        }
+    }
 
-            for (var page : pages.value) {
-                var html = getPageContent(page.getId());
-                var doc = Jsoup.parse(html);
-                var imgs = doc.getElementsByTag("img");
-                for (var img : imgs) {
-                    var src = img.attr("src");
-                    if (!src.startsWith("https://graph.microsoft.com/")) continue;
-                    var parts = src.split("/");
-                    img.attr("src", "/resources/" + parts[parts.length - 2]);
-                }
-                var cover = imgs.isEmpty() ? "" : imgs.get(0).attr("src");
-                var content = doc.body().html();
-                page.setSummary(StrUtil.sub(doc.body().text(), 0, 800));
-                page.setContent(content);
-                page.setSectionId(sectionId);
-                page.setCover(cover);
-                blogDao.pageSave(page);
-            }
+    private Metrics.Histogram phase(String name) {
+        return metrics.histogram("onelog_sync_phase_seconds", "同步各阶段耗时", "phase", name);
+    }
+
+    private void count(String result, long n) {
+        metrics.counter("onelog_sync_pages_total", "同步处理的页面数", "result", result).add(n);
+    }
 
-            if (pages.value.size() < limit) {
-                break;
+    /**
+     * 列出分区内全部页面的元数据, 与库里的last_modified_date_time比对:
+     * 库里有而远端没有的删除, 新增或变化的并发拉取正文并转换后分批落库.
+     * 全部成功才推进分区时间戳, 否则下次同步仍会重新比对这个分区.
+     */
+    public Models.ChangeSet syncPages(Models.Section section, ExecutorService pool, Progress progress) {
+        var sectionId = section.getId();
+        var remote = listPages(sectionId);
+        var stored = blogDao.pageStamps(sectionId);
+        progress.listed.addAndGet(remote.size());
+
+        var changes = new Models.ChangeSet();
+        var remoteIds = remote.stream().map(Models.Page::getId).collect(Collectors.toSet());
+        deletePages(sectionId, stored.keySet().stream().filter(id -> !remoteIds.contains(id)).toList(), changes);
+
+        var pages = remote.stream()
+          .filter(p -> {
+              var old = stored.get(p.getId());
+              return old == null || p.getLastModifiedDateTime().after(old);
+          })
+          .toList();
+
+        var resources = new ConcurrentHashMap<String, List<String>>();
+        var futures = pages.stream()
+          .map(page -> CompletableFuture.supplyAsync(() -> {
+              resources.put(page.getId(), transformer.transform(page, getPageContent(page.getId())));
+              progress.fetched.incrementAndGet();
+              page.setSectionId(sectionId);
+              return page;
+          }, pool))
+          .toList();
+
+        var fetched = new ArrayList<Models.Page>();
+        var failed = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            try {
+                fetched.add(futures.get(i).join());
+            } catch (CompletionException e) {
+                failed++;
+                progress.failed.incrementAndGet();
+                progress.error(pages.get(i).getId() + ": " + e.getCause().getMessage());
+                log.error("拉取页面失败: {}", pages.get(i).getId(), e.getCause());
             }
         }
+
+        var saving = fetched.stream()
+          .sorted(Comparator.comparing(Models.Page::getLastModifiedDateTime))
+          .toList();
+        var byId = saving.stream().collect(Collectors.toMap(Models.Page::getId, p -> p));
+        var batchSize = settings.getSyncBatchSize();
+        for (int i = 0; i < saving.size(); i += batchSize) {
+            var batch = saving.subList(i, Math.min(i + batchSize, saving.size()));
+            var batchChanges = blogDao.pageSaveAll(batch);
+            batchChanges.changed().forEach(id -> {
+                var page = byId.get(id);
+                pageCache.invalidatePage(id);
+                prefetcher.submit(resources.get(id));
+                searchIndex.update(id, page.getTitle(), page.getText());
+            });
+            progress.saved.addAndGet(batchChanges.changed().size());
+            progress.unchanged.addAndGet(batchChanges.getUnchanged().size());
+            changes.addAll(batchChanges);
+        }
+
+        if (failed == 0) {
+            blogDao.sectionTouch(sectionId, section.getLastModifiedDateTime());
+        }
+        if (!changes.isEmpty()) {
+            pageCache.invalidateSection(sectionId);
+        }
+        return changes;
+    }
+
+    private void deletePages(String sectionId, List<String> ids, Models.ChangeSet changes) {
+        if (ids.isEmpty()) return;
+        blogDao.pageDeleteAll(sectionId, ids);
+        ids.forEach(id -> {
+            pageCache.removePage(id);
+            searchIndex.remove(id);
+        });
+        changes.getDeleted().addAll(ids);
+        progress.deleted.addAndGet(ids.size());
+        log.info("删除页面: {}", ids);
+    }
+
+    /**
+     * 只取比对需要的字段, 按创建时间排序并跟随nextLink翻页.
+     */
+    private List<Models.Page> listPages(String sectionId) {
+        var path = "/v1.0/me/onenote/sections/" + sectionId + "/pages";
+        var args = new HashMap<String, Object>();
+        args.put("$select", "id,title,createdDateTime,lastModifiedDateTime");
+        args.put("$orderby", "createdDateTime");
+        args.put("$top", 100);
+        return graphApi.graphGetAll(path, args, Models.Page.class);
     }
 
-    public String getPageContent(String pageId) {
+    public InputStream getPageContent(String pageId) {
         var path = "/v1.0/me/onenote/pages/" + pageId + "/content";
-        return graphApi.graphGet(path, Map.of());
+        return graphApi.graphGetStream(path, Map.of());
     }
 
-    public List<Models.Section> syncSections(String notebookId) {
+    /**
+     * 分区信息按id合并写入, 远端已删除的分区连同页面一起删除.
+     * 返回lastModifiedDateTime比库里新(或新增)的分区, 只有这些分区需要再列页面;
+     * 这些分区先保留库里的旧时间戳, 等页面同步成功后再推进.
+     */
+    public List<Models.Section> syncSections(String notebookId, Models.ChangeSet changes) {
         var path = "/v1.0/me/onenote/notebooks/" + notebookId + "/sections";
-        var resp = graphApi.graphGet(path, Map.of());
-        var sections = JSONUtil.toBean(resp, Sections.class);
-        sections.value = sections.value.stream().filter(it -> !it.getDisplayName().startsWith("$")).toList();
-        stupidQL.transaction(tx -> {
-            stupidQL.delete(BlogDao.t_section, "1 = 1");
-            sections.value.forEach(sec -> tx.addInsert(sec).insert(String.class));
-            return null;
-        });
-        return sections.value;
+        var args = Map.<String, Object>of("$select", "id,displayName,createdDateTime,lastModifiedDateTime,isDefault");
+        var remote = graphApi.graphGetAll(path, args, Models.Section.class).stream()
+          .filter(it -> !it.getDisplayName().startsWith("$"))
+          .toList();
+        var stored = blogDao.sections().stream().collect(Collectors.toMap(Models.Section::getId, s -> s));
+
+        var changed = new ArrayList<Models.Section>();
+        var rows = new ArrayList<Models.Section>();
+        for (var sec : remote) {
+            var old = stored.get(sec.getId());
+            var row = BeanUtil.copyProperties(sec, Models.Section.class);
+            if (old == null || sec.getLastModifiedDateTime().after(old.getLastModifiedDateTime())) {
+                changed.add(sec);
+                row.setLastModifiedDateTime(old == null ? new Timestamp(0) : old.getLastModifiedDateTime());
+            }
+            rows.add(row);
+        }
+        blogDao.sectionSaveAll(rows);
+
+        var remoteIds = remote.stream().map(Models.Section::getId).collect(Collectors.toSet());
+        for (var id : stored.keySet()) {
+            if (remoteIds.contains(id)) continue;
+            deletePages(id, List.copyOf(blogDao.pageStamps(id).keySet()), changes);
+            blogDao.sectionDelete(id);
+            log.info("删除分区: {}", stored.get(id).getDisplayName());
+        }
+
+        progress.skipped.addAndGet(remote.size() - changed.size());
+        return changed;
     }
 
+    public Progress progress() {
+        return progress;
+    }
 
-    public static class Sections {
-        public List<Models.Section> value;
+    /**
+     * 当前(或最近一次)同步的状态.
+     */
+    public synchronized Map<String, Object> status() {
+        var status = progress.toMap();
+        status.put("running", running);
+        status.put("pending", rerun);
+        return status;
     }
 
-    public static class Pages {
-        public List<Models.Page> value;
+    @Getter
+    public static class Progress {
+        private static final int MAX_ERRORS = 20;
+
+        private final long startAt = System.currentTimeMillis();
+        private volatile long endAt = 0;
+        private volatile String phase = "idle";
+        private final List<String> errors = new CopyOnWriteArrayList<>();
+        private final AtomicInteger sections = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger listed = new AtomicInteger();
+        private final AtomicInteger fetched = new AtomicInteger();
+        private final AtomicInteger saved = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger deleted = new AtomicInteger();
+
+        void finish() {
+            endAt = System.currentTimeMillis();
+        }
+
+        void error(String message) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(message);
+            }
+        }
+
+        public long duration() {
+            if (phase.equals("idle")) return 0;
+            return (endAt == 0 ? System.currentTimeMillis() : endAt) - startAt;
+        }
+
+        /**
+         * 每秒处理(拉取或失败)的页面数.
+         */
+        public double throughput() {
+            var millis = duration();
+            return millis == 0 ? 0 : (fetched.get() + failed.get()) * 1000.0 / millis;
+        }
+
+        public Map<String, Object> toMap() {
+            var map = new LinkedHashMap<String, Object>();
+            map.put("phase", phase);
+            map.put("startAt", phase.equals("idle") ? null : new Timestamp(startAt));
+            map.put("duration", duration());
+            map.put("sections", sections.get());
+            map.put("skipped", skipped.get());
+            map.put("listed", listed.get());
+            map.put("fetched", fetched.get());
+            map.put("saved", saved.get());
+            map.put("unchanged", unchanged.get());
+            map.put("deleted", deleted.get());
+            map.put("failed", failed.get());
+            map.put("throughput", Math.round(throughput() * 100) / 100.0);
+            map.put("errors", errors);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sections=%d, skipped=%d, listed=%d, fetched=%d, saved=%d, unchanged=%d, deleted=%d, failed=%d, duration=%dms",
+              sections.get(), skipped.get(), listed.get(), fetched.get(), saved.get(), unchanged.get(), deleted.get(), failed.get(), duration());
+        }
     }
 }
\ No newline at end of file
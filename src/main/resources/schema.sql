@@ -11,6 +11,25 @@ CREATE TABLE IF NOT EXISTS t_page
         last_modified_date_time datetime NOT NULL
     );
 
+ALTER TABLE t_page ADD COLUMN IF NOT EXISTS content_hash varchar(64) DEFAULT '' NOT NULL;
+
+CREATE TABLE IF NOT EXISTS t_page_body
+    (
+        page_id varchar(100) NOT NULL
+            PRIMARY KEY,
+        encoding varchar(10) DEFAULT 'gzip' NOT NULL,
+        body varbinary NOT NULL
+    );
+
+INSERT INTO t_page_body (page_id, encoding, body)
+    SELECT id, 'none', STRINGTOUTF8(content) FROM t_page p
+    WHERE content IS NOT NULL AND NOT EXISTS (SELECT 1 FROM t_page_body b WHERE b.page_id = p.id);
+UPDATE t_page SET content = NULL WHERE content IS NOT NULL;
+
+CREATE INDEX IF NOT EXISTS idx_page_created ON t_page (created_date_time DESC, id DESC);
+CREATE INDEX IF NOT EXISTS idx_page_section_created ON t_page (section_id, created_date_time DESC, id DESC);
+CREATE INDEX IF NOT EXISTS idx_page_section_modified ON t_page (section_id, last_modified_date_time);
+
 CREATE TABLE IF NOT EXISTS t_section
     (
         id varchar(100) NOT NULL PRIMARY KEY,
@@ -29,4 +48,13 @@ CREATE TABLE IF NOT EXISTS t_kv
         val text NOT NULL,
         update_ts timestamp DEFAULT CURRENT_TIMESTAMP NOT NULL,
         CONSTRAINT uniq_name UNIQUE (name)
-    );
\ No newline at end of file
+    );
+
+CREATE TABLE IF NOT EXISTS t_resource
+    (
+        id varchar(200) NOT NULL PRIMARY KEY,
+        size bigint DEFAULT 0 NOT NULL,
+        content_type varchar(200) DEFAULT '' NOT NULL,
+        checksum varchar(64) DEFAULT '' NOT NULL,
+        last_access timestamp DEFAULT CURRENT_TIMESTAMP NOT NULL
+    );
@@ -0,0 +1,179 @@
+package onelog;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range和If-Range的解析, 以及send按Range输出的状态码, 头和正文.
+ */
+class FileSenderTest {
+    private static final byte[] CONTENT = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+
+    private File file;
+    private FileSender sender;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = Files.createTempFile("onelog-send", ".bin").toFile();
+        Files.write(file.toPath(), CONTENT);
+        sender = new FileSender();
+        sender.settings = new Settings();
+    }
+
+    @AfterEach
+    void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    void parsesSingleRanges() {
+        assertArrayEquals(new long[]{0, 4}, FileSender.parseRange("bytes=0-4", 20));
+        assertArrayEquals(new long[]{10, 19}, FileSender.parseRange("bytes=10-", 20));
+        assertArrayEquals(new long[]{15, 19}, FileSender.parseRange("bytes=-5", 20));
+        // 超出文件的结尾和后缀都截到文件范围内
+        assertArrayEquals(new long[]{5, 19}, FileSender.parseRange("bytes=5-100", 20));
+        assertArrayEquals(new long[]{0, 19}, FileSender.parseRange("bytes=-50", 20));
+    }
+
+    @Test
+    void unsatisfiableRangesReturnNull() {
+        assertNull(FileSender.parseRange("bytes=20-", 20));
+        assertNull(FileSender.parseRange("bytes=8-3", 20));
+        assertNull(FileSender.parseRange("bytes=-0", 20));
+    }
+
+    @Test
+    void unsupportedRangesFallBackToWholeFile() {
+        assertEquals(0, FileSender.parseRange("bytes=0-1,5-6", 20).length);
+        assertEquals(0, FileSender.parseRange("items=0-4", 20).length);
+        assertEquals(0, FileSender.parseRange("bytes=abc", 20).length);
+        assertEquals(0, FileSender.parseRange("bytes=x-4", 20).length);
+    }
+
+    @Test
+    void ifRangeComparesEtagAndDate() {
+        var headers = Map.of("If-Range", "\"v1\"");
+        assertTrue(FileSender.ifRangeMatches(exchange(headers, Map.of("ETag", "\"v1\""), new Capture()), file));
+        assertFalse(FileSender.ifRangeMatches(exchange(headers, Map.of("ETag", "\"v2\""), new Capture()), file));
+        assertFalse(FileSender.ifRangeMatches(exchange(Map.of("If-Range", "W/\"v1\""), Map.of("ETag", "\"v1\""), new Capture()), file));
+
+        var modified = file.lastModified();
+        assertTrue(FileSender.ifRangeMatches(exchange(Map.of("If-Range", "date"), Map.of(), new Capture(), modified), file));
+        assertFalse(FileSender.ifRangeMatches(exchange(Map.of("If-Range", "date"), Map.of(), new Capture(), modified - 5000), file));
+        assertTrue(FileSender.ifRangeMatches(exchange(Map.of(), Map.of(), new Capture()), file));
+    }
+
+    @Test
+    void sendsPartialContent() throws IOException {
+        for (var out : new Capture[]{new Capture(), new BufferCapture()}) {
+            var response = new HashMap<String, Object>();
+            sender.send(exchange(Map.of("Range", "bytes=2-5"), response, out), file);
+            assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.get("status"));
+            assertEquals("bytes 2-5/20", response.get("Content-Range"));
+            assertEquals(4L, response.get("length"));
+            assertEquals("2345", out.text());
+        }
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() throws IOException {
+        var response = new HashMap<String, Object>();
+        var out = new Capture();
+        sender.send(exchange(Map.of("Range", "bytes=30-"), response, out), file);
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.get("status"));
+        assertEquals("bytes */20", response.get("Content-Range"));
+        assertEquals("", out.text());
+    }
+
+    @Test
+    void staleIfRangeSendsWholeFile() throws IOException {
+        var response = new HashMap<String, Object>(Map.of("ETag", "\"v2\""));
+        var out = new Capture();
+        sender.send(exchange(Map.of("Range", "bytes=2-5", "If-Range", "\"v1\""), response, out), file);
+        assertNull(response.get("status"));
+        assertNull(response.get("Content-Range"));
+        assertEquals(new String(CONTENT, StandardCharsets.US_ASCII), out.text());
+    }
+
+    private static HttpExchange exchange(Map<String, String> headers, Map<String, Object> response, Capture out) {
+        return exchange(headers, response, out, -1);
+    }
+
+    /**
+     * response记录setStatus/setHeader/setContentLengthLong, 键分别是"status", 头名和"length".
+     */
+    private static HttpExchange exchange(Map<String, String> headers, Map<String, Object> response, Capture out, long ifRangeDate) {
+        var loader = FileSenderTest.class.getClassLoader();
+        var request = (HttpServletRequest) Proxy.newProxyInstance(loader, new Class[]{HttpServletRequest.class}, (proxy, method, args) ->
+          switch (method.getName()) {
+              case "getMethod" -> "GET";
+              case "getHeader" -> headers.get((String) args[0]);
+              case "getDateHeader" -> ifRangeDate;
+              default -> null;
+          });
+        var res = (HttpServletResponse) Proxy.newProxyInstance(loader, new Class[]{HttpServletResponse.class}, (proxy, method, args) ->
+          switch (method.getName()) {
+              case "setStatus" -> response.put("status", args[0]);
+              case "setHeader" -> response.put((String) args[0], args[1]);
+              case "setContentLengthLong" -> response.put("length", args[0]);
+              case "getHeader" -> response.get((String) args[0]);
+              case "getOutputStream" -> out;
+              default -> null;
+          });
+        return new HttpExchange(request, res);
+    }
+
+    public static class Capture extends ServletOutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        String text() {
+            return bytes.toString(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * 带write(ByteBuffer)的输出流, 走映射池的路径.
+     */
+    public static class BufferCapture extends Capture {
+        public void write(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                bytes.write(buffer.get());
+            }
+        }
+    }
+}
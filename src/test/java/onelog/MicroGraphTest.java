@@ -0,0 +1,200 @@
+package onelog;
+
+import com.google.inject.Guice;
+import com.google.inject.util.Providers;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用本地假OAuth端点验证: 并发调用getNiceAccessToken时token只刷新一次, 刷新失败或超时后冷却期内不再重试.
+ */
+class MicroGraphTest {
+    private static final int CALLERS = 32;
+
+    private HttpServer server;
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private final AtomicInteger refreshes = new AtomicInteger();
+    private volatile boolean failing = false;
+    private volatile long delay = 200;
+    private Settings settings;
+    private MicroGraph microGraph;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = fakeOAuth();
+        server.start();
+
+        settings = new Settings();
+        settings.setClientId("client");
+        settings.setSecretKey("secret");
+        settings.getGraph().setBaseBackoff(60_000);
+        settings.getGraph().setOauthUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/consumers/");
+
+        // token只存内存, 不碰数据库
+        var blogDao = new BlogDao() {
+            @Override
+            public void kvSave(String name, String val) {
+            }
+
+            @Override
+            public <T> T kvGet(String name, Class<T> retType) {
+                return null;
+            }
+        };
+        microGraph = Guice.createInjector(b -> {
+            b.bind(Settings.class).toInstance(settings);
+            b.bind(BlogDao.class).toProvider(Providers.of(blogDao));
+        }).getInstance(MicroGraph.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    void expiredTokenRefreshedOnce() throws Exception {
+        microGraph.saveToken(token("stale", -10));
+
+        assertEquals(Set.of("fresh"), callConcurrently());
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void expiringTokenRefreshedOnceInBackground() throws Exception {
+        microGraph.saveToken(token("stale", 60));
+
+        // 还没过期, 刷新期间调用方继续拿旧token
+        assertEquals(Set.of("stale"), callConcurrently());
+        waitFor(() -> microGraph.getNiceAccessToken().equals("fresh"));
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void failedRefreshCoolsDown() throws Exception {
+        failing = true;
+        microGraph.saveToken(token("stale", 60));
+
+        // 刷新失败后的冷却期内, 提前刷新窗口里的调用不再打到端点
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Set.of("stale"), callConcurrently());
+            Thread.sleep(300);
+        }
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void expiredTokenFailsFastDuringCooldown() throws Exception {
+        failing = true;
+        microGraph.saveToken(token("stale", -10));
+
+        assertThrows(ExecutionException.class, this::callConcurrently);
+        var error = assertThrows(RuntimeException.class, microGraph::getNiceAccessToken);
+        assertTrue(error.getMessage().startsWith("刷新Token失败"));
+        assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    void stalledRefreshTimesOut() throws Exception {
+        settings.getGraph().setRequestTimeout(500);
+        delay = 10_000;
+        microGraph.saveToken(token("stale", -10));
+
+        var start = System.nanoTime();
+        var error = assertThrows(RuntimeException.class, microGraph::getNiceAccessToken);
+        assertEquals("刷新Token超时", error.getMessage());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        // 超时同样进入冷却, 不再打到端点
+        assertThrows(RuntimeException.class, microGraph::getNiceAccessToken);
+        assertEquals(1, refreshes.get());
+    }
+
+    private Set<String> callConcurrently() throws Exception {
+        var pool = Executors.newFixedThreadPool(CALLERS);
+        try {
+            var start = new CountDownLatch(1);
+            var tasks = new ArrayList<Future<String>>();
+            for (int i = 0; i < CALLERS; i++) {
+                tasks.add(pool.submit(() -> {
+                    start.await();
+                    return microGraph.getNiceAccessToken();
+                }));
+            }
+            start.countDown();
+
+            var tokens = ConcurrentHashMap.<String>newKeySet();
+            for (var task : tasks) {
+                tokens.add(task.get(10, TimeUnit.SECONDS));
+            }
+            return tokens;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.call()) {
+            if (System.nanoTime() > deadline) throw new AssertionError("等待超时");
+            Thread.sleep(20);
+        }
+    }
+
+    private static MicroGraph.AccessToken token(String accessToken, long expiresIn) {
+        var token = new MicroGraph.AccessToken();
+        token.setAccessToken(accessToken);
+        token.setRefreshToken("refresh");
+        token.setExpireAt(System.currentTimeMillis() / 1000 + expiresIn);
+        return token;
+    }
+
+    /**
+     * 每次刷新计数, 并故意慢一点, 让并发调用都落在同一次刷新期间.
+     */
+    private HttpServer fakeOAuth() throws IOException {
+        var http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        http.createContext("/consumers/oauth2/v2.0/token", exchange -> {
+            refreshes.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            var body = (failing ? """
+              {"error":"temporarily_unavailable"}
+              """ : """
+              {"token_type":"Bearer","access_token":"fresh","refresh_token":"refresh2","expires_in":3600}
+              """).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(failing ? 503 : 200, body.length);
+            try (var os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        http.setExecutor(serverThreads);
+        return http;
+    }
+}